@@ -11,6 +11,9 @@ var qzConfig = {
         printHTML:       'qzDonePrinting',
         printToHost:     'qzDonePrinting',
         printToFile:     'qzDonePrinting',
+        printAsync:      'qzJobQueued',
+        printPSAsync:    'qzJobQueued',
+        printHTMLAsync:  'qzJobQueued',
         findPorts:       'qzDoneFindingPorts',
         openPort:        'qzDoneOpeningPort',
         closePort:       'qzDoneClosingPort',
@@ -215,6 +218,11 @@ function connectionSuccess(websocket) {
                 }
             }
 
+            // Batched calls reply once with an array of {method, result, error} entries
+            if (message.method == 'batch') {
+                message.result = [message.result];
+            }
+
             if (message.callback != 'setupMethods' && message.result != undefined && message.result.constructor !== Array) {
                 message.result = [message.result];
             }
@@ -331,9 +339,63 @@ function mapMethods(websocket, methods) {
         return {setHostname: qz.setHostname, setPort: qz.setPort}
     };
 
+    // Queue several calls and send them to the server in a single frame
+    qz.batch = function() {
+        return createBatch(websocket, methods);
+    };
+
     logger.log("Sent methods off to get rehabilitated");
 }
 
+/**
+ * Creates an object mirroring the qz methods which records each call instead of sending it.
+ * Calls can be chained, i.e. qz.batch().findPrinter('zebra').append('^XA^XZ').print().run(callback);
+ * run() transmits all recorded calls in order as one signed message.  The name "run" is reserved for this,
+ * a server method of the same name could not be recorded.  The callback receives an array
+ * of {method, result, error} entries, one per call.  When no callback is supplied, the mapped callback
+ * of the last call is used instead (i.e. qzDonePrinting for print).
+ */
+function createBatch(websocket, methods) {
+    var calls = [];
+
+    var batch = {
+        run: function(callback) {
+            var cbName = 'batch_callback';
+
+            if ($.isFunction(callback)) {
+                window["qz"][cbName] = callback;
+            } else if (calls.length > 0) {
+                cbName = qzConfig.callbackMap[calls[calls.length - 1].method];
+            } else {
+                cbName = undefined;
+            }
+
+            logger.log("Calling batch of " + calls.length + " methods --> CB: " + cbName + "()");
+            websocket.sendObj({method: 'batch', params: [], calls: calls, callback: cbName, init: false});
+        }
+    };
+
+    for(var x = 0; x < methods.length; x++) {
+        (function(_name) {
+            if (_name == 'run') {
+                logger.log("Cannot batch method " + _name + "(), the name is reserved");
+                return;
+            }
+            batch[_name] = function() {
+                var args = [];
+                for(var i = 0; i < arguments.length; i++) {
+                    args.push(arguments[i]);
+                }
+
+                calls.push({method: _name, params: args});
+                return batch;
+            };
+        })(methods[x].name);
+    }
+
+    return batch;
+}
+
 function setupMethods(methodName) {
     if ($.param(qzConfig.preemptive).length > 0) {
         logger.log("Reset " + methodName);
@@ -133,6 +133,9 @@ public class PrintApplet extends PrintFunction implements Runnable {
                             case Constants.APPEND_PDF:
                                 super.appendPDF(file);
                                 break;
+                            case Constants.APPEND_PDF_RAW:
+                                super.finishAppendPDF(file);
+                                break;
                             default:
                                 break; // Do nothing
                         }
@@ -486,6 +489,20 @@ public class PrintApplet extends PrintFunction implements Runnable {
         appendFromThread(url, Constants.APPEND_PDF);
     }
 
+    /**
+     * Appends every page of a PDF as a raw image in the language specified.
+     *
+     * @param url URL location of the PDF
+     * @param lang Usually "ESCP", "EPL", "ZPL", etc. Parsed by
+     * <code>LanguageType</code> class.
+     * @param dotsPerInch Density of the printer, i.e. 203 or 300
+     */
+    public void appendPDF(String url, String lang, int dotsPerInch) {
+        this.pdfDensity = dotsPerInch;
+        setLanguage(lang);
+        appendFromThread(url, Constants.APPEND_PDF_RAW);
+    }
+
     /**
      * Appends a raw image from URL specified in the language format specified.
      *
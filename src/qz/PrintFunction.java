@@ -4,9 +4,17 @@ import qz.common.*;
 import qz.exception.InvalidFileTypeException;
 import qz.exception.NullPrintServiceException;
 import qz.exception.SerialException;
+import qz.printer.GraphicRegistry;
+import qz.printer.ImageCache;
 import qz.printer.ImageWrapper;
+import qz.printer.JobStatus;
 import qz.printer.LanguageType;
+import qz.printer.PDFCache;
+import qz.printer.PDFRasterizer;
 import qz.printer.PaperFormat;
+import qz.printer.PrintJobInfo;
+import qz.printer.PrintJobManager;
+import qz.printer.PrintJobMonitor;
 import qz.printer.PrintServiceMatcher;
 import qz.reflection.ReflectException;
 import qz.utils.ByteUtilities;
@@ -14,6 +22,7 @@ import qz.utils.FileUtilities;
 import qz.utils.NetworkUtilities;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
 import javax.print.PrintException;
 import javax.print.PrintService;
 import javax.print.PrintServiceLookup;
@@ -29,7 +38,7 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
-import java.util.LinkedList;
+import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,6 +46,14 @@ public class PrintFunction extends Applet {
 
     private static final Logger log = Logger.getLogger(PrintFunction.class.getName());
 
+    // Converted raw images, shared by all connections.  Size in bytes, can be overridden with the imageCacheSize property
+    protected static final ImageCache imageCache = new ImageCache(Integer.getInteger("imageCacheSize", 16 * 1024 * 1024));
+    // Parsed PDFs and their rendered pages, shared by all connections.  Can be overridden with the
+    // pdfCacheDocuments and pdfPageCacheSize (bytes) properties.  The page size fits at least one
+    // Letter page rendered at 300dpi (~34MB)
+    protected static final PDFCache pdfCache = new PDFCache(Integer.getInteger("pdfCacheDocuments", 8),
+                                                            Integer.getInteger("pdfPageCacheSize", 64 * 1024 * 1024));
+
     protected LanguageType lang;
     protected PrintService ps;
     protected PrintRaw printRaw;
@@ -55,6 +72,10 @@ public class PrintFunction extends Applet {
     protected int imageX = 0;
     protected int imageY = 0;
     protected int dotDensity = 32;
+    protected int pdfDensity = 203;
+    protected int imageQuantizationMethod = ImageWrapper.CHECK_LUMA;
+    protected int imageEncoding = ImageWrapper.ENCODE_HEX;
+    protected boolean imageStorage;
 
     protected String jobName;
     protected String file;
@@ -65,6 +86,10 @@ public class PrintFunction extends Applet {
     //protected String pageBreak; // For spooling pages one at a time
     protected int documentsPerSpool = 0;
     protected String endOfDocument;
+    protected JobStatus jobStatus;
+    protected PrintRaw rawJob;      // raw job jobStatus was reported for, null for HTML and PostScript
+    protected int jobTimeout = 0;
+    protected PrintJobManager jobManager;
     //protected String manualBreak = "%/SPOOL/%";
 
 
@@ -80,10 +105,6 @@ public class PrintFunction extends Applet {
         return this.alternatePrint;
     }
 
-    protected boolean isRawAutoSpooling() throws UnsupportedEncodingException {
-        return documentsPerSpool > 0 && endOfDocument != null && !getPrintRaw().isClear() && getPrintRaw().contains(endOfDocument);
-    }
-
     public void setLogPostScriptFeatures(boolean logFeaturesPS) {
         this.logFeaturesPS = logFeaturesPS;
         log.info("Console logging of PostScript printing features set to \"" + logFeaturesPS + "\"");
@@ -139,6 +160,35 @@ public class PrintFunction extends Applet {
         getPrintHTML().append(html);
     }
 
+    /**
+     * Appends HTML as a raw image in the language specified, so it prints
+     * on raw printers without going through a printer driver.  Each page of
+     * HTML, ended by <code>&lt;/html&gt;</code>, is drawn at the printer's
+     * density and becomes one label.  The image quantization, encoding and
+     * coordinates apply as they do for <code>appendImage</code>.
+     *
+     * @param html the HTML to be appended
+     * @param lang Usually "ESCP", "EPL", "ZPL", etc. Parsed by
+     * <code>LanguageType</code> class.
+     * @param dotsPerInch Density of the printer, i.e. 203 or 300
+     * @param width Printable width in dots, i.e. 812 for 4in at 203dpi, or 0
+     * to use the width of the HTML
+     */
+    public void appendHTML(String html, String lang, int dotsPerInch, int width) {
+        setLanguage(lang);
+
+        try {
+            PrintHTML renderer = new PrintHTML();
+            renderer.append(html);
+            for (BufferedImage image : renderer.getImages(dotsPerInch, width)) {
+                getPrintRaw().append(getImageWrapper(image).getLabelCommand(dotsPerInch));
+            }
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Error appending data", e);
+            set(e);
+        }
+    }
+
     /**
      * Gets the first xml node identified by <code>tagName</code>, reads its
      * contents and appends it to the buffer. Assumes XML content is base64
@@ -193,17 +243,179 @@ public class PrintFunction extends Applet {
         this.file = file;
 
         try{
-            getPrintPS().setPDF(ByteBuffer.wrap(ByteUtilities.readBinaryFile(file)));
+            getPrintPS().setPDF(pdfCache.getDocument(ByteUtilities.readBinaryFile(file)));
+        } catch (Exception e) {
+            log.log(Level.SEVERE, "Error appending data", e);
+            set(e);
+        }
+    }
+
+    /**
+     * Appends every page of a PDF as a raw image in the language specified,
+     * one label per page.  Pages are rendered in parallel and appended in
+     * order as they are converted.  The image quantization, encoding and
+     * coordinates apply to every page as they do for <code>appendImage</code>.
+     *
+     * @param file URL path to the PDF to be appended
+     * @param lang Usually "ESCP", "EPL", "ZPL", etc. Parsed by
+     * <code>LanguageType</code> class.
+     * @param dotsPerInch Density of the printer, i.e. 203 or 300
+     */
+    public void appendPDF(String file, String lang, int dotsPerInch) {
+        this.pdfDensity = dotsPerInch;
+        setLanguage(lang);
+
+        finishAppendPDF(file);
+    }
+
+    protected void finishAppendPDF(String file) {
+        this.file = file;
+        final int density = pdfDensity;
+
+        try {
+            PDFRasterizer rasterizer = new PDFRasterizer(pdfCache.getDocument(ByteUtilities.readBinaryFile(file)), density);
+            rasterizer.rasterize(new PDFRasterizer.PageHandler() {
+                public byte[] convert(BufferedImage image, int pageNumber) throws Exception {
+                    return getImageWrapper(image).getLabelCommand(density);
+                }
+
+                public void append(int pageNumber, byte[] commands) {
+                    log.info("Appending PDF page " + pageNumber);
+                    getPrintRaw().append(commands);
+                }
+            });
         } catch (Exception e) {
             log.log(Level.SEVERE, "Error appending data", e);
             set(e);
         }
     }
 
+    /**
+     * @param image a rendered page
+     * @return the page ready to convert, with the current language, quantization, encoding and coordinates
+     */
+    protected ImageWrapper getImageWrapper(BufferedImage image) {
+        ImageWrapper iw = new ImageWrapper(image, lang);
+        iw.setCharset(charset);
+        iw.setImageQuantizationMethod(imageQuantizationMethod);
+        iw.setImageEncoding(imageEncoding);
+        iw.setDotDensity(dotDensity);
+        iw.setxPos(imageX);
+        iw.setyPos(imageY);
+        return iw;
+    }
+
     public void setLanguage(String lang) {
         this.lang = LanguageType.getType(lang);
     }
 
+    /**
+     * Sets the maximum total size of the converted raw images kept for reuse,
+     * shared by all pages.  Reprinting a cached image skips decoding and
+     * converting it.
+     *
+     * @param bytes maximum size in bytes, 0 to disable the cache
+     */
+    public void setImageCacheSize(int bytes) {
+        imageCache.setMaxSize(bytes);
+    }
+
+    /**
+     * Returns the hit, miss and eviction counts of the raw image cache
+     *
+     * @return cache statistics, i.e. for logging
+     */
+    public String getImageCacheStats() {
+        return imageCache.toString();
+    }
+
+    /**
+     * Sets the maximum number of parsed PDFs kept for reuse, shared by all
+     * pages.  Reprinting a cached PDF skips parsing it, and for raw printers
+     * rendering its pages.
+     *
+     * @param documents maximum number of documents, 0 to disable the cache
+     */
+    public void setPDFCacheSize(int documents) {
+        pdfCache.setMaxDocuments(documents);
+    }
+
+    /**
+     * Returns the document and page hit and miss counts of the PDF cache
+     *
+     * @return cache statistics, i.e. for logging
+     */
+    public String getPDFCacheStats() {
+        return pdfCache.toString();
+    }
+
+    /**
+     * Enables storing raw images in printer memory (ZPL and EPL only).  The
+     * first time an image is appended for a printer it is downloaded with
+     * ZPL <code>~DG</code> or EPL <code>GM</code>, afterwards only the short
+     * <code>^XG</code> or <code>GG</code> recall command is sent.  Graphics
+     * are kept in printer RAM, call <code>clearImageStorage()</code> if the
+     * printer was restarted.
+     *
+     * @param imageStorage true to store images in printer memory
+     */
+    public void setImageStorage(boolean imageStorage) {
+        this.imageStorage = imageStorage;
+    }
+
+    /**
+     * Forgets which images were stored in the memory of the current printer,
+     * so they are downloaded again the next time they are appended
+     */
+    public void clearImageStorage() {
+        GraphicRegistry.clear(getGraphicStorageKey());
+    }
+
+    /**
+     * Returns the name stored graphics are tracked under for the current printer
+     */
+    protected String getGraphicStorageKey() {
+        return ps == null? "default":ps.getName();
+    }
+
+    /**
+     * Sets how ZPL images are encoded.  Can be "hex" (default), "compressed"
+     * (ZPL ASCII run-length compression) or "z64" (deflate and base64, needs
+     * a recent firmware).  Compressed graphics are typically several times
+     * smaller to send.  For ESC/P images, "raster" sends the image with the
+     * ESC/POS <code>GS v 0</code> command instead of <code>ESC *</code>.
+     *
+     * @param encoding name of the encoding
+     */
+    public void setImageEncoding(String encoding) {
+        int parsed = ImageWrapper.getImageEncoding(encoding);
+        if (parsed < 0) {
+            log.warning("Cannot translate image encoding '"
+                                + encoding + "'.  Using '" + this.imageEncoding + "'.");
+        } else {
+            this.imageEncoding = parsed;
+        }
+    }
+
+    /**
+     * Sets how raw images are converted to black and white dots.  Can be
+     * "black" (only fully black pixels), "luma" (default, light and dark
+     * pixels), "alpha" (opaque pixels), "dither" (Floyd-Steinberg error
+     * diffusion) or "bayer" (ordered dithering).  Dithering gives shades of
+     * grey for photos and greyscale logos.
+     *
+     * @param method name of the quantization method
+     */
+    public void setImageQuantizationMethod(String method) {
+        int quantization = ImageWrapper.getImageQuantizationMethod(method);
+        if (quantization < 0) {
+            log.warning("Cannot translate image quantization method '"
+                                + method + "'.  Using '" + this.imageQuantizationMethod + "'.");
+        } else {
+            this.imageQuantizationMethod = quantization;
+        }
+    }
+
     /**
      * Appends a raw image from URL specified in the language format specified.
      * For CPCL and EPL, x and y coordinates should *always* be supplied. If
@@ -291,20 +503,69 @@ public class PrintFunction extends Applet {
         try{
             BufferedImage bi;
             ImageWrapper iw;
+            byte[] imageData;
             if (ByteUtilities.isBase64Image(imageFile)){
-                byte[] imageData = Base64.decode(imageFile.split(",")[1]);
-                bi = ImageIO.read(new ByteArrayInputStream(imageData));
+                imageData = Base64.decode(imageFile.split(",")[1]);
             }else{
-                bi = ImageIO.read(new URL(imageFile));
+                imageData = ByteUtilities.readBinaryFile(imageFile);
+            }
+
+            // Graphics kept in printer memory only need to be recalled by name
+            String graphicName = null;
+            if (imageStorage && ImageWrapper.supportsStoredGraphics(lang)) {
+                graphicName = ImageWrapper.getGraphicName(ImageCache.getKey(imageData, lang, imageQuantizationMethod,
+                                                                            imageEncoding, charset.name()));
+                if (GraphicRegistry.isStored(getGraphicStorageKey(), graphicName)
+                        || getPrintRaw().isStoringGraphic(graphicName)) {
+                    log.info("Recalling graphic " + graphicName + " stored on " + getGraphicStorageKey());
+                    getPrintRaw().append(ImageWrapper.getRecallCommand(lang, graphicName, imageX, imageY, charset));
+                    return;
+                }
+            }
+
+            // The same image converted the same way gives the same commands
+            String cacheKey = ImageCache.getKey(imageData, lang, imageQuantizationMethod, imageEncoding,
+                                                dotDensity, imageX, imageY, charset.name(), graphicName);
+            byte[] cached = imageCache.get(cacheKey);
+            if (cached == null) {
+                // Large images are decoded a band at a time rather than held whole in memory
+                ImageReader reader = ImageWrapper.getStreamingReader(imageData);
+                if (reader != null) {
+                    iw = new ImageWrapper(reader, lang);
+                } else {
+                    bi = ImageIO.read(new ByteArrayInputStream(imageData));
+                    iw = new ImageWrapper(bi, lang);
+                }
+                try {
+                    iw.setCharset(charset);
+                    iw.setImageQuantizationMethod(imageQuantizationMethod);
+                    iw.setImageEncoding(imageEncoding);
+                    // Image density setting (ESCP only)
+                    iw.setDotDensity(dotDensity);
+                    // Image coordinates, (EPL only)
+                    iw.setxPos(imageX);
+                    iw.setyPos(imageY);
+                    if (graphicName != null) {
+                        // Store the graphic, then print it from printer memory
+                        cached = new ByteArrayBuilder(iw.getStoreCommand(graphicName))
+                                .append(ImageWrapper.getRecallCommand(lang, graphicName, imageX, imageY, charset))
+                                .getByteArray();
+                    } else {
+                        cached = iw.getImageCommand();
+                    }
+                } finally {
+                    iw.dispose();
+                }
+                imageCache.put(cacheKey, cached);
+            } else {
+                log.info("Using cached image conversion, " + imageCache);
+            }
+
+            getPrintRaw().append(cached);
+            if (graphicName != null) {
+                // Registered once the job has printed to the printer, see PrintRaw
+                getPrintRaw().addStoredGraphic(graphicName);
             }
-            iw = new ImageWrapper(bi, lang);
-            iw.setCharset(charset);
-            // Image density setting (ESCP only)
-            iw.setDotDensity(dotDensity);
-            // Image coordinates, (EPL only)
-            iw.setxPos(imageX);
-            iw.setyPos(imageY);
-            getPrintRaw().append(iw.getImageCommand());
         } catch (Exception e) {
             log.log(Level.SEVERE, "Error appending data", e);
             set(e);
@@ -395,6 +656,7 @@ public class PrintFunction extends Applet {
         if (this.printPS == null) {
             this.printPS = new PrintPostScript();
             this.printPS.setPrintParameters(getJobName(), getCopies(), getLogPostScriptFeatures());
+            this.printPS.setPrintService(ps);
         }
         return printPS;
     }
@@ -403,10 +665,24 @@ public class PrintFunction extends Applet {
         if (this.printHTML == null) {
             this.printHTML = new PrintHTML();
             this.printHTML.setPrintParameters(getJobName(), getCopies());
+            this.printHTML.setPrintService(ps);
         }
         return printHTML;
     }
 
+    /**
+     * Returns the manager running the jobs queued by <code>printAsync()</code>,
+     * <code>printPSAsync()</code> and <code>printHTMLAsync()</code>
+     *
+     * @return the print job manager
+     */
+    public PrintJobManager getPrintJobManager() {
+        if (this.jobManager == null) {
+            this.jobManager = new PrintJobManager();
+        }
+        return jobManager;
+    }
+
     /**
      * Appends raw hexadecimal bytes in the format "x1Bx00", etc.
      *
@@ -452,29 +728,12 @@ public class PrintFunction extends Applet {
      * printPersistent() to save the buffer to be used/appended to later.
      */
     public void print() {
-        log.info("===== SENDING DATA TO THE PRINTER =====");
-
         try {
-            if (isRawAutoSpooling()) {
-                LinkedList<ByteArrayBuilder> pages = ByteUtilities.splitByteArray(
-                        getPrintRaw().getByteArray(),
-                        endOfDocument.getBytes(charset.name()),
-                        documentsPerSpool);
-
-                //FIXME:  Remove this debug line
-                log.info("Automatically spooling to " + pages.size() + " separate print job(s)");
-
-                for (ByteArrayBuilder b : pages) {
-                    logAndPrint(getPrintRaw(), b.getByteArray());
-                }
-
-                if (!reprint) {
-                    getPrintRaw().clear();
-                }
-            } else {
-                logAndPrint(getPrintRaw());
-            }
+            prepare(getPrintRaw());
+            rawJob = getPrintRaw();
+            jobStatus = print(rawJob);
         } catch (Exception e) {
+            jobStatus = JobStatus.FAILED;
             set(e);
         } finally {
             if (this.printRaw != null) {
@@ -483,6 +742,154 @@ public class PrintFunction extends Applet {
         }
     }
 
+    /**
+     * Sends the raw commands of <code>pr</code> to the printer, split into
+     * several jobs if auto-spooling is configured.
+     *
+     * @param pr raw data to print
+     * @return status of the last job sent
+     */
+    protected JobStatus print(PrintRaw pr) throws IOException, PrintException, InterruptedException {
+        return print(pr, new RawJobSettings(this));
+    }
+
+    /**
+     * Sends the raw commands of <code>pr</code> to the printer with the
+     * spooling settings in effect when <code>settings</code> was created.
+     *
+     * @param pr raw data to print
+     * @param settings spooling settings of this job
+     * @return status of the last job sent
+     */
+    protected JobStatus print(PrintRaw pr, RawJobSettings settings) throws IOException, PrintException, InterruptedException {
+        log.info("===== SENDING DATA TO THE PRINTER =====");
+
+        if (settings.isAutoSpooling(pr)) {
+            Iterable<ByteArrayBuilder> spools = ByteUtilities.splitByteArray(
+                    pr.getRawCmds(),
+                    settings.endOfDocument.getBytes(settings.charset.name()),
+                    settings.documentsPerSpool);
+
+            // Each spool is sent as soon as it is found, before the rest of the data is searched
+            int spooled = 0;
+            for (ByteArrayBuilder b : spools) {
+                logCommands(b, settings.charset);
+                pr.print(b.getByteArray());
+                spooled++;
+            }
+
+            log.info("Automatically spooled to " + spooled + " separate print job(s)");
+        } else {
+            logCommands(pr.getRawCmds(), settings.charset);
+            pr.print();
+        }
+
+        if (!settings.reprint) {
+            pr.clear();
+        }
+
+        return pr.getJobStatus();
+    }
+
+    /**
+     * The settings a raw job is spooled with, copied from
+     * <code>PrintFunction</code> on the caller's thread so a queued job isn't
+     * affected by calls made while it waits
+     */
+    protected static class RawJobSettings {
+        private final Charset charset;
+        private final String endOfDocument;
+        private final int documentsPerSpool;
+        private final boolean reprint;
+
+        protected RawJobSettings(PrintFunction pf) {
+            this.charset = pf.charset;
+            this.endOfDocument = pf.endOfDocument;
+            this.documentsPerSpool = pf.documentsPerSpool;
+            this.reprint = pf.reprint;
+        }
+
+        protected boolean isAutoSpooling(PrintRaw pr) throws UnsupportedEncodingException {
+            // A file or socket is written in one piece, so only jobs for the print service are split
+            return documentsPerSpool > 0 && endOfDocument != null && endOfDocument.length() > 0
+                    && !pr.isClear() && !pr.isDirectOutput() && pr.contains(endOfDocument);
+        }
+    }
+
+    /**
+     * Queues the raw commands appended so far as a background print job and
+     * returns immediately.  The raw buffer is handed over to the job, so new
+     * data can be appended for the next job while this one spools.
+     *
+     * @return ID of the queued job, see <code>getJobStatus(String)</code>
+     */
+    public String printAsync() {
+        final PrintRaw pr = getPrintRaw();
+        final RawJobSettings settings = new RawJobSettings(this);
+        this.printRaw = null;
+        prepare(pr);
+
+        return getPrintJobManager().submit(pr.getJobName(), new PrintJobManager.Job() {
+            public JobStatus call() throws Exception {
+                // Completion or failure reported once the data was sent updates the job
+                pr.setJobListener(new PrintJobMonitor.Listener() {
+                    public void statusChanged(JobStatus status) {
+                        reportStatus(status);
+                    }
+                });
+                try {
+                    return print(pr, settings);
+                } finally {
+                    pr.clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues the HTML appended so far as a background print job, see
+     * <code>printAsync()</code>
+     *
+     * @return ID of the queued job
+     */
+    public String printHTMLAsync() {
+        final PrintHTML ph = getPrintHTML();
+        this.printHTML = null;
+        htmlPrint = false;
+        ph.setCopies(getCopies());
+        // Logged now, the job itself must not touch the fields of this class
+        if (file != null) {
+            logCommands("    <<" + file + ">>");
+        }
+        logCommands(ph);
+
+        return getPrintJobManager().submit(ph.getJobName(), new Callable<JobStatus>() {
+            public JobStatus call() throws Exception {
+                ph.print();
+                return JobStatus.SENT;
+            }
+        });
+    }
+
+    /**
+     * Queues the image or PDF appended so far as a background print job, see
+     * <code>printAsync()</code>
+     *
+     * @return ID of the queued job
+     */
+    public String printPSAsync() {
+        final PrintPostScript pps = getPrintPS();
+        this.printPS = null;
+        prepare(pps);
+
+        return getPrintJobManager().submit(pps.getJobName(), new Callable<JobStatus>() {
+            public JobStatus call() throws Exception {
+                pps.print();
+                return JobStatus.SENT;
+            }
+        });
+    }
+
     public void init(){
         resetVariables();
         super.init();
@@ -497,10 +904,14 @@ public class PrintFunction extends Applet {
     }
 
     public void printHTML() {
+        rawJob = null;
         try {
+            getPrintHTML().setCopies(getCopies());
             logAndPrint(getPrintHTML());
+            jobStatus = JobStatus.SENT;
         }
         catch(Exception e){
+            jobStatus = JobStatus.FAILED;
             set(e);
         }
         finally {
@@ -511,10 +922,13 @@ public class PrintFunction extends Applet {
     }
 
     public void printPS() {
+        rawJob = null;
         try {
             logAndPrint(getPrintPS());
+            jobStatus = JobStatus.SENT;
         }
         catch(Exception e){
+            jobStatus = JobStatus.FAILED;
             set(e);
         }
         finally {
@@ -582,7 +996,7 @@ public class PrintFunction extends Applet {
                 getSerialIO().append(data.getBytes(charset.name()));
 
                 try {
-                    logCommands(new String(getSerialIO().getInputBuffer().getByteArray(), charset.name()));
+                    logCommands(getSerialIO().getInputBuffer());
                     getSerialIO().send();
                 } catch (Throwable t) {
                     this.set(t);
@@ -703,6 +1117,9 @@ public class PrintFunction extends Applet {
         if (this.printRaw == null) {
             this.printRaw = new PrintRaw();
             this.printRaw.setPrintParameters(getJobName(), isAlternatePrinting(), getCopies());
+            this.printRaw.setJobTimeout(jobTimeout);
+            this.printRaw.setPrintService(ps);
+            this.printRaw.setCharset(charset);
         }
         return printRaw;
     }
@@ -803,6 +1220,45 @@ public class PrintFunction extends Applet {
         t = null;
     }
 
+    /**
+     * Returns the outcome of the last print job, i.e. "SENT", "COMPLETED",
+     * "FAILED", "CANCELED" or "TIMED_OUT".  Returns null if nothing was printed yet.
+     *
+     * @return status of the last print job
+     */
+    public String getJobStatus() {
+        JobStatus status = jobStatus;
+        if (status == JobStatus.SENT && rawJob != null) {
+            // The printer may report the raw job completed or failed after it was sent
+            status = rawJob.getJobStatus();
+        }
+        return status == null ? null : status.name();
+    }
+
+    /**
+     * Returns the status of a job queued by <code>printAsync()</code>, i.e.
+     * "QUEUED", "SPOOLING", "SENT" or "FAILED".  Returns null if the job is
+     * unknown or too old to still be tracked.
+     *
+     * @param jobId ID returned when the job was queued
+     * @return status of the job
+     */
+    public String getJobStatus(String jobId) {
+        PrintJobInfo job = getPrintJobManager().getJob(jobId);
+        return job == null ? null : job.getStatus().name();
+    }
+
+    /**
+     * Sets the maximum time to wait for the printer to acknowledge a raw print
+     * job before reporting it as "TIMED_OUT".  Default is 0 (wait indefinitely).
+     *
+     * @param jobTimeout timeout in milliseconds
+     */
+    public void setJobTimeout(int jobTimeout) {
+        this.jobTimeout = jobTimeout;
+        getPrintRaw().setJobTimeout(jobTimeout);
+    }
+
     public String getVersion() {
         return Constants.VERSION;
     }
@@ -876,7 +1332,33 @@ public class PrintFunction extends Applet {
     }
 
     protected void logCommands(PrintRaw pr) {
-        logCommands(pr.getOutput());
+        logCommands(pr.getRawCmds());
+    }
+
+    /**
+     * Logs the raw commands without joining them into a single array, large
+     * jobs are truncated to <code>Constants.LOG_COMMANDS_SIZE</code> bytes
+     */
+    protected void logCommands(ByteArrayBuilder commands) {
+        logCommands(commands, charset);
+    }
+
+    protected void logCommands(ByteArrayBuilder commands, Charset charset) {
+        int length = Math.min(commands.getLength(), Constants.LOG_COMMANDS_SIZE);
+        byte[] head = new byte[length];
+        commands.getBytes(0, length, head, 0);
+        try {
+            String text = new String(head, charset.name());
+            if (length < commands.getLength()) {
+                text += "\r\n... (" + (commands.getLength() - length) + " more bytes)";
+            }
+            logCommands(text);
+        } catch (UnsupportedEncodingException ex) {
+            log.warning("Cannot decode raw bytes for debug output. "
+                    + "This could be due to incompatible charset for this JVM "
+                    + "or mixed charsets within one byte stream.  Ignore this message"
+                    + " if printing seems fine.");
+        }
     }
 
     protected void logCommands(byte[] commands) {
@@ -894,22 +1376,24 @@ public class PrintFunction extends Applet {
         log.info("\r\n\r\n" + commands + "\r\n\r\n");
     }
 
-    protected void logAndPrint(PrintRaw pr, byte[] data) throws IOException, InterruptedException, PrintException {
-        logCommands(data);
-        pr.print(data);
+    /**
+     * Hands the copies and printer language set so far over to <code>pr</code>
+     */
+    protected void prepare(PrintRaw pr) {
+        pr.setCopies(getCopies());
+        pr.setLanguageType(lang);
     }
 
-    protected void logAndPrint(PrintRaw pr) throws IOException, PrintException, InterruptedException {
-        logCommands(pr);
-        if (reprint) {
-            pr.print();
-        } else {
-            pr.print();
-            pr.clear();
-        }
+    protected void logAndPrint(PrintPostScript printPS) throws PrinterException {
+        prepare(printPS);
+        printPS.print();
     }
 
-    protected void logAndPrint(PrintPostScript printPS) throws PrinterException {
+    /**
+     * Hands the paper size and copies set so far over to <code>printPS</code>
+     * and resets them for the next job
+     */
+    protected void prepare(PrintPostScript printPS) {
         logCommands("    <<" + file + ">>");
         printPS.setPaperSize(paperSize);
         if (copies > 0) {
@@ -917,7 +1401,6 @@ public class PrintFunction extends Applet {
         } else {
             printPS.setCopies(1);
         }
-        printPS.print();
         psPrint = false;
         paperSize = null;
     }
@@ -1025,6 +1508,9 @@ public class PrintFunction extends Applet {
 
     @Override
     public void stop() {
+        if (jobManager != null) {
+            jobManager.shutdown();
+        }
         if (serialIO != null) {
             try {
                 serialIO.close();
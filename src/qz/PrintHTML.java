@@ -24,29 +24,55 @@
 
 package qz;
 
+import qz.printer.CopiesSupport;
+
+import javax.print.DocFlavor;
 import javax.print.PrintService;
 import javax.print.attribute.HashPrintRequestAttributeSet;
+import javax.print.attribute.standard.Copies;
 import javax.print.attribute.standard.MediaPrintableArea;
 import javax.swing.*;
+import javax.swing.plaf.basic.BasicHTML;
+import javax.swing.text.View;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.awt.print.PageFormat;
 import java.awt.print.Printable;
 import java.awt.print.PrinterException;
 import java.awt.print.PrinterJob;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class PrintHTML extends JLabel implements Printable {
 
     private static final Logger log = Logger.getLogger(PrintHTML.class.getName());
 
+    /**
+     * Whether HTML is laid out without a window by default.  Can be turned
+     * off with the <code>htmlOffscreen=false</code> system property
+     */
+    public static final boolean OFFSCREEN = Boolean.parseBoolean(System.getProperty("htmlOffscreen", "true"));
+
+    /**
+     * Closing tag which ends each page of HTML
+     */
+    private static final String END_TAG = "</html>";
 
     private final AtomicReference<PrintService> ps = new AtomicReference<PrintService>(null);
     private final AtomicReference<String> jobName = new AtomicReference<String>("QZ-PRINT 2D Printing");
     private final AtomicInteger orientation = new AtomicInteger(PageFormat.PORTRAIT);
-    private final AtomicReference<String> htmlData = new AtomicReference<String>(null);
+    private final StringBuilder htmlData = new StringBuilder();
+    private final List<Integer> fragmentEnds = new ArrayList<Integer>();
+    private final AtomicInteger copies = new AtomicInteger(1);
+    private final AtomicBoolean offscreen = new AtomicBoolean(OFFSCREEN);
+    private final AtomicReference<List<Fragment>> fragments = new AtomicReference<List<Fragment>>(null);
+    private final AtomicReference<List<Page>> pages = new AtomicReference<List<Page>>(null);
+    private final AtomicInteger paginatedHeight = new AtomicInteger(0);
+    private Fragment shownFragment;
     //private final AtomicReference<Paper> paper = new AtomicReference<Paper>(null);
     //private JLabel label;
 
@@ -58,8 +84,21 @@ public class PrintHTML extends JLabel implements Printable {
         //label.setBackground(Color.WHITE);
     }
 
+    /**
+     * Appends HTML to the document.  Closing <code>&lt;/html&gt;</code> tags
+     * are found as the HTML is appended, only looking at the new text and
+     * the end of the previous, so the whole document is never scanned again.
+     *
+     * @param html HTML to append, may end in the middle of a tag
+     */
     public void append(String html) {
-          htmlData.set(htmlData.get() == null ? html : htmlData.get() + html);
+        synchronized(htmlData) {
+            int from = Math.max(htmlData.length() - (END_TAG.length() - 1), getFragmentStart(fragmentEnds.size()));
+            htmlData.append(html);
+            for(int end = indexOfEndTag(from); end >= 0; end = indexOfEndTag(end + END_TAG.length())) {
+                fragmentEnds.add(end);
+            }
+        }
     }
 
     //public void append(String html) {
@@ -71,15 +110,51 @@ public class PrintHTML extends JLabel implements Printable {
    // }
 
     public void clear() {
-        htmlData.set(null);
+        synchronized(htmlData) {
+            htmlData.setLength(0);
+            fragmentEnds.clear();
+        }
     }
 
     public String get() {
-        return htmlData.get();
+        synchronized(htmlData) {
+            return htmlData.length() == 0? null:htmlData.toString();
+        }
     }
 
-    private String[] getHTMLDataArray() {
-        return htmlData.get().split("(?i)</html>");
+    /**
+     * @return the HTML between each closing <code>&lt;/html&gt;</code> tag, without the tags
+     */
+    private List<String> getHTMLFragments() {
+        synchronized(htmlData) {
+            List<String> fragments = new ArrayList<String>(fragmentEnds.size() + 1);
+            for(int i = 0; i < fragmentEnds.size(); i++) {
+                fragments.add(htmlData.substring(getFragmentStart(i), fragmentEnds.get(i)));
+            }
+            fragments.add(htmlData.substring(getFragmentStart(fragmentEnds.size())));
+            return fragments;
+        }
+    }
+
+    private int getFragmentStart(int fragment) {
+        return fragment == 0? 0:fragmentEnds.get(fragment - 1) + END_TAG.length();
+    }
+
+    /**
+     * @return position of the next closing tag in any case, starting at <code>from</code>, or -1 if there is none
+     */
+    private int indexOfEndTag(int from) {
+        int last = htmlData.length() - END_TAG.length();
+        for(int i = htmlData.indexOf("<", from); i >= 0 && i <= last; i = htmlData.indexOf("<", i + 1)) {
+            int j = 1;
+            while(j < END_TAG.length() && Character.toLowerCase(htmlData.charAt(i + j)) == END_TAG.charAt(j)) {
+                j++;
+            }
+            if (j == END_TAG.length()) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     //public String get() {
@@ -87,61 +162,241 @@ public class PrintHTML extends JLabel implements Printable {
     //}
 
     public void print() throws PrinterException {
-        JFrame j = new JFrame(jobName.get());
-        j.setUndecorated(true);
-        j.setLayout(new FlowLayout());
+        JFrame j = null;
+        if (!isOffscreen()) {
+            j = new JFrame(jobName.get());
+            j.setUndecorated(true);
+            j.setLayout(new FlowLayout());
+        }
         this.setBorder(null);
 
         try{
-            for (String s : getHTMLDataArray()) {
-                if (s.trim().isEmpty()) {
-                    continue;
-                }
-                this.setText(s + "</html>");
+            List<Fragment> measured = measureFragments();
+            if (measured.isEmpty()) {
+                return;
+            }
+            fragments.set(measured);
+            pages.set(null);
+
+            int width = 0, height = 0;
+            for (Fragment fragment : measured) {
+                width = Math.max(width, fragment.width);
+                height = Math.max(height, fragment.height);
+            }
+
+            if (j != null) {
                 j.add(this);
 
 
                 j.pack();
                 j.setExtendedState(Frame.ICONIFIED);
                 j.setVisible(true);
+            }
 
-                // Eliminate any margins
-                HashPrintRequestAttributeSet attr = new HashPrintRequestAttributeSet();
-                attr.add(new MediaPrintableArea(0f, 0f, getWidth()/PrintPostScript.DPI, getHeight()/PrintPostScript.DPI, MediaPrintableArea.INCH));
+            // Eliminate any margins, pages longer than the media are split by print(Graphics, ...)
+            HashPrintRequestAttributeSet attr = new HashPrintRequestAttributeSet();
+            attr.add(new MediaPrintableArea(0f, 0f, width/PrintPostScript.DPI, height/PrintPostScript.DPI, MediaPrintableArea.INCH));
 
-                PrinterJob job = PrinterJob.getPrinterJob();
-                job.setPrintService(ps.get());
-                job.setPrintable(this);
-                job.setJobName(jobName.get());
+            PrinterJob job = PrinterJob.getPrinterJob();
+            job.setPrintService(ps.get());
+            job.setPrintable(this);
+            job.setJobName(jobName.get());
+            if (copies.get() > 1 && CopiesSupport.supportsCopies(ps.get(), DocFlavor.SERVICE_FORMATTED.PRINTABLE)) {
+                attr.add(new Copies(copies.get()));
                 job.print(attr);
+            } else {
+                for (int i = 0; i < copies.get(); i++) {
+                    job.print(attr);
+                }
+            }
+            if (j != null) {
                 j.setVisible(false);
             }
         }
         
         finally{
-            j.dispose();
+            if (j != null) {
+                j.dispose();
+            }
+            fragments.set(null);
+            pages.set(null);
+            shownFragment = null;
             clear();
         }
     }
 
+    /**
+     * Lays out each page of HTML once, recording its size and the vertical
+     * extent of every line, so page breaks can be placed between lines
+     */
+    private List<Fragment> measureFragments() {
+        List<Fragment> measured = new ArrayList<Fragment>();
+        for (String s : getHTMLFragments()) {
+            if (s.trim().isEmpty()) {
+                continue;
+            }
+            Fragment fragment = new Fragment(s + END_TAG);
+            showFragment(fragment);
+            fragment.width = getWidth();
+            fragment.height = getHeight();
+
+            View root = (View)getClientProperty(BasicHTML.propertyKey);
+            if (root != null) {
+                root.setSize(fragment.width, fragment.height);
+                collectLines(root, new Rectangle(0, 0, fragment.width, fragment.height), fragment.lines);
+            }
+            measured.add(fragment);
+        }
+        log.info("Measured " + measured.size() + " HTML page(s)");
+        return measured;
+    }
+
+    /**
+     * Paints each page of HTML into a black and white image for raw
+     * printers, at the printer's density rather than at screen resolution,
+     * so text is drawn sharply instead of being scaled up.
+     *
+     * @param dotsPerInch density of the printer, i.e. 203 or 300
+     * @param width printable width in dots, text wraps at this width, or 0 to use the width of the HTML
+     * @return an image for each page of HTML
+     */
+    public List<BufferedImage> getImages(int dotsPerInch, int width) {
+        double scale = dotsPerInch / PrintPostScript.DPI;
+        List<BufferedImage> images = new ArrayList<BufferedImage>();
+        for (String s : getHTMLFragments()) {
+            if (s.trim().isEmpty()) {
+                continue;
+            }
+            this.setText(s + END_TAG);
+            shownFragment = null;
+
+            // Lay the HTML out in points, at the width of the paper
+            Dimension size = this.getPreferredSize();
+            View root = (View)getClientProperty(BasicHTML.propertyKey);
+            if (width > 0 && root != null) {
+                size.width = (int)(width / scale);
+                root.setSize(size.width, 0);
+                size.height = (int)Math.ceil(root.getPreferredSpan(View.Y_AXIS));
+            }
+            this.setSize(size);
+
+            BufferedImage image = new BufferedImage(Math.max(1, (int)Math.ceil(size.width * scale)),
+                                                    Math.max(1, (int)Math.ceil(size.height * scale)),
+                                                    BufferedImage.TYPE_BYTE_BINARY);
+            Graphics2D g = image.createGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, image.getWidth(), image.getHeight());
+            g.scale(scale, scale);
+            boolean doubleBuffered = super.isDoubleBuffered();
+            super.setDoubleBuffered(false);
+            this.paint(g);
+            super.setDoubleBuffered(doubleBuffered);
+            g.dispose();
+            images.add(image);
+        }
+        log.info("Rendered " + images.size() + " HTML page(s) at " + dotsPerInch + " dpi");
+        return images;
+    }
+
+    /**
+     * Sets the label to <code>fragment</code>, unless it already shows it
+     */
+    private void showFragment(Fragment fragment) {
+        if (shownFragment != fragment) {
+            this.setText(fragment.html);
+            // The HTML view measures itself from the font metrics alone, no peer needed
+            this.setSize(this.getPreferredSize());
+            shownFragment = fragment;
+        }
+    }
+
+    /**
+     * Adds the top and bottom of every leaf view, i.e. each run of text on a line or an image
+     */
+    private static void collectLines(View view, Shape allocation, List<int[]> lines) {
+        if (view.getViewCount() == 0) {
+            Rectangle bounds = allocation.getBounds();
+            lines.add(new int[] {bounds.y, bounds.y + bounds.height});
+            return;
+        }
+        for(int i = 0; i < view.getViewCount(); i++) {
+            Shape child = view.getChildAllocation(i, allocation);
+            // The label's root view doesn't report one, its document fills the whole label
+            collectLines(view.getView(i), child == null? allocation:child, lines);
+        }
+    }
+
+    /**
+     * Splits every fragment into pages of at most <code>pageHeight</code>.
+     * A break falling through a line is moved up to the top of that line,
+     * unless the line is taller than the page itself.
+     */
+    private static List<Page> paginate(List<Fragment> fragments, int pageHeight) {
+        List<Page> pages = new ArrayList<Page>();
+        for (Fragment fragment : fragments) {
+            int top = 0;
+            do {
+                int bottom = top + pageHeight;
+                if (bottom >= fragment.height) {
+                    bottom = fragment.height;
+                } else {
+                    boolean moved;
+                    do {
+                        moved = false;
+                        for (int[] line : fragment.lines) {
+                            if (line[0] > top && line[0] < bottom && line[1] > bottom) {
+                                bottom = line[0];
+                                moved = true;
+                            }
+                        }
+                    } while (moved);
+                }
+                pages.add(new Page(fragment, top, bottom - top));
+                top = bottom;
+            } while (top < fragment.height);
+        }
+        return pages;
+    }
+
     public void setPrintParameters(String jobName, int copies) {
         // RKC: PROBLEM >>> this.ps.set(applet.getPrintService());
         this.jobName.set(jobName.replace(" ___ ", " HTML "));
-        if (copies > 1) {
-            setCopies(copies);
-        }
+        setCopies(copies);
+    }
+
+    public String getJobName() {
+        return jobName.get();
     }
 
-    /*This warning is suppressed because this is a non-implemented method that *shouldn't* be used... */
-    public void setCopies(@SuppressWarnings("UnusedParameters") int copies) {
-        log.log(Level.WARNING, "Copies is unsupported for printHTML()",
-                new UnsupportedOperationException("Copies attribute for HTML 1.0 data has not yet been implemented"));
+    /**
+     * Sets the number of copies of each HTML page.  They are left to the
+     * printer when it supports the <code>Copies</code> attribute, otherwise
+     * each copy is printed as a separate job.
+     *
+     * @param copies number of copies, at least 1
+     */
+    public void setCopies(int copies) {
+        this.copies.set(Math.max(1, copies));
     }
 
     public int getCopies() {
-        log.log(Level.WARNING, "Copies is unsupported for printHTML()",
-                    new UnsupportedOperationException("Copies attribute for HTML 1.0 data has not yet been implemented"));
-        return -1;
+        return copies.get();
+    }
+
+    /**
+     * Sets whether the HTML is laid out and painted off-screen, or in an
+     * iconified window as before.  Off-screen printing avoids creating and
+     * realising a frame for every page, which is slow under Xvfb and may
+     * steal the focus.  Headless environments are always off-screen.
+     *
+     * @param offscreen <code>true</code> to print without a window
+     */
+    public void setOffscreen(boolean offscreen) {
+        this.offscreen.set(offscreen);
+    }
+
+    public boolean isOffscreen() {
+        return offscreen.get() || GraphicsEnvironment.isHeadless();
     }
 
     public void setPrintService(PrintService ps) {
@@ -155,15 +410,35 @@ public class PrintHTML extends JLabel implements Printable {
         if (format == null) {
             throw new PrinterException("No page format specified");
         }
-        if (pageIndex > 0) {
+
+        format.setOrientation(orientation.get());
+
+        List<Page> pageList = pages.get();
+        int pageHeight = Math.max(1, (int)format.getImageableHeight());
+        if (pageList == null || paginatedHeight.get() != pageHeight) {
+            List<Fragment> measured = fragments.get();
+            if (measured == null) {
+                // Not started from print(), so print the label as it is
+                measured = new ArrayList<Fragment>();
+                Fragment fragment = new Fragment(getText());
+                fragment.width = getWidth();
+                fragment.height = getHeight();
+                measured.add(fragment);
+                shownFragment = fragment;
+            }
+            pageList = paginate(measured, pageHeight);
+            pages.set(pageList);
+            paginatedHeight.set(pageHeight);
+        }
+        if (pageIndex >= pageList.size()) {
             return (NO_SUCH_PAGE);
         }
+        Page page = pageList.get(pageIndex);
+        showFragment(page.fragment);
 
         boolean doubleBuffered = super.isDoubleBuffered();
         super.setDoubleBuffered(false);
 
-        format.setOrientation(orientation.get());
-
         //Paper paper = new Paper();
         //paper.setSize(8.5 * 72, 11 * 72);
         //paper.setImageableArea(0, 0, paper.getWidth(), paper.getHeight());
@@ -179,8 +454,39 @@ public class PrintHTML extends JLabel implements Printable {
         Graphics2D graphics2D = (Graphics2D) graphics;
         graphics2D.translate(format.getImageableX(), format.getImageableY());
         //g2d.translate(paper.getImageableX(), paper.getImageableY());
+        graphics2D.clipRect(0, 0, getWidth(), page.height);
+        graphics2D.translate(0, -page.top);
         this.paint(graphics2D);
         super.setDoubleBuffered(doubleBuffered);
         return (PAGE_EXISTS);
     }
+
+    /**
+     * A page of HTML as appended, laid out at its preferred size
+     */
+    private static class Fragment {
+        private final String html;
+        private final List<int[]> lines = new ArrayList<int[]>();
+        private int width;
+        private int height;
+
+        private Fragment(String html) {
+            this.html = html;
+        }
+    }
+
+    /**
+     * The part of a fragment printed on one sheet
+     */
+    private static class Page {
+        private final Fragment fragment;
+        private final int top;
+        private final int height;
+
+        private Page(Fragment fragment, int top, int height) {
+            this.fragment = fragment;
+            this.top = top;
+            this.height = height;
+        }
+    }
 }
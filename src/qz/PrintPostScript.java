@@ -25,20 +25,29 @@ import com.sun.pdfview.PDFFile;
 import com.sun.pdfview.PDFPage;
 import com.sun.pdfview.PDFRenderer;
 import qz.common.LogIt;
+import qz.printer.CopiesSupport;
+import qz.printer.PDFCache;
 import qz.printer.PaperFormat;
 import qz.utils.SystemUtilities;
 
 import javax.imageio.ImageIO;
+import javax.print.DocFlavor;
 import javax.print.PrintService;
 import javax.print.attribute.Attribute;
 import javax.print.attribute.HashPrintRequestAttributeSet;
+import javax.print.attribute.standard.Copies;
 import javax.print.attribute.standard.MediaPrintableArea;
 import javax.print.attribute.standard.MediaSize;
 import javax.print.attribute.standard.MediaSizeName;
+import javax.print.attribute.standard.PrinterResolution;
+import javax.print.attribute.standard.SheetCollate;
 import java.awt.*;
+import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
 import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.awt.print.*;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -58,8 +67,10 @@ public class PrintPostScript implements Printable {
     public static final Logger log = Logger.getLogger(PrintPostScript.class.getName());
 
     private final AtomicReference<BufferedImage> bufferedImage = new AtomicReference<BufferedImage>(null);
+    private final AtomicReference<ScaledImage> scaledImage = new AtomicReference<ScaledImage>(null);
     private final AtomicReference<ByteBuffer> bufferedPDF = new AtomicReference<ByteBuffer>(null);
     private final AtomicReference<PDFFile> pdfFile = new AtomicReference<PDFFile>(null);
+    private final AtomicReference<PDFCache.Document> pdfDocument = new AtomicReference<PDFCache.Document>(null);
     private final AtomicReference<PrintService> printServiceAtomicReference = new AtomicReference<PrintService>(null);
     private final AtomicReference<String> jobName = new AtomicReference<String>("jZebra 2D Printing");
     private final AtomicReference<Paper> paper = new AtomicReference<Paper>(null);
@@ -68,6 +79,12 @@ public class PrintPostScript implements Printable {
     private final AtomicReference<Integer> copies = new AtomicReference<Integer>(null);
     private final AtomicReference<Boolean> logPostScriptFeatures = new AtomicReference<Boolean>(false);
     public static final float DPI = 72f;
+    /**
+     * Printer resolution assumed when neither the printer nor its graphics
+     * report one.  Can be overridden with the <code>imagePrintDpi</code>
+     * system property
+     */
+    public static final int DEFAULT_PRINT_DPI = Integer.getInteger("imagePrintDpi", 300);
     //Never used, OK to delete?
     //public static final float MMPI = 280f;
     private String pdfClass;
@@ -85,6 +102,11 @@ public class PrintPostScript implements Printable {
      */
     public static BufferedImage rotate(BufferedImage image, double angle) {
         LogIt.log("Rotating image " + angle);
+        double quarters = Math.toDegrees(angle) / 90;
+        if (Math.abs(quarters - Math.rint(quarters)) < 1e-9) {
+            return rotateQuarters(image, (int)(((long)Math.rint(quarters) % 4 + 4) % 4));
+        }
+
         double sin = Math.abs(Math.sin(angle)), cos = Math.abs(Math.cos(angle));
         int w = image.getWidth(), h = image.getHeight();
         int neww = (int)Math.floor(w*cos+h*sin), newh = (int)Math.floor(h*cos+w*sin);
@@ -98,6 +120,60 @@ public class PrintPostScript implements Printable {
         return result;
     }
 
+    /**
+     * Rotates a buffered image clockwise by a multiple of 90 degrees.  The
+     * pixels are moved as they are, without resampling, into an image of the
+     * same type, one row at a time.
+     *
+     * @param image BufferedImage to rotate
+     * @param quarters number of quarter turns, 0 to 3
+     * @return Rotated image data, or <code>image</code> itself for 0
+     */
+    private static BufferedImage rotateQuarters(BufferedImage image, int quarters) {
+        if (quarters == 0) {
+            return image;
+        }
+
+        int w = image.getWidth(), h = image.getHeight();
+        int neww = quarters == 2? w:h, newh = quarters == 2? h:w;
+        ColorModel cm = image.getColorModel();
+        Raster src = image.getRaster();
+        WritableRaster dest = src.createCompatibleWritableRaster(neww, newh);
+
+        int bands = src.getNumBands();
+        int[] row = new int[w * bands];
+        for(int y = 0; y < h; y++) {
+            src.getPixels(src.getMinX(), src.getMinY() + y, w, 1, row);
+            switch(quarters) {
+                case 1:
+                    // Row y becomes column h-1-y, top to bottom
+                    dest.setPixels(h - 1 - y, 0, 1, w, row);
+                    break;
+                case 2:
+                    // Row y becomes row h-1-y, right to left
+                    reversePixels(row, bands);
+                    dest.setPixels(0, h - 1 - y, w, 1, row);
+                    break;
+                default:
+                    // Row y becomes column y, bottom to top
+                    reversePixels(row, bands);
+                    dest.setPixels(y, 0, 1, w, row);
+            }
+        }
+
+        return new BufferedImage(cm, dest, cm.isAlphaPremultiplied(), null);
+    }
+
+    private static void reversePixels(int[] samples, int bands) {
+        for(int i = 0, j = samples.length - bands; i < j; i += bands, j -= bands) {
+            for(int b = 0; b < bands; b++) {
+                int t = samples[i + b];
+                samples[i + b] = samples[j + b];
+                samples[j + b] = t;
+            }
+        }
+    }
+
     /**
      * Can be called directly
      *
@@ -168,17 +244,23 @@ public class PrintPostScript implements Printable {
         // If copies are specified, handle them prior to printing
         if (copies.get() != null && copies.get() > 1) {
             log.info("Copies specified: " + copies.get());
-            // Does the DocFlavor and Printer support "Copies" (this lies)
-            //if (printServiceAtomicReference.get().isAttributeCategorySupported(Copies.class)) {
-            //    LogIt.log("Printer supports copies");
-            //    attr.add(new Copies(copies.get()));
-            //    job.print();
-            //} else {
-            // Copies is unsupported, handle copies manually (yuck)
+            // The printer must honour "Copies", and collate them if there are several pages
+            PrintService ps = printServiceAtomicReference.get();
+            DocFlavor flavor = DocFlavor.SERVICE_FORMATTED.PRINTABLE;
+            boolean collate = getPageCount() > 1;
+            if (CopiesSupport.supportsCopies(ps, flavor) && (!collate || CopiesSupport.supportsCollation(ps, flavor))) {
+                log.info("Printer will print the copies");
+                attr.add(new Copies(copies.get()));
+                if (collate) {
+                    attr.add(SheetCollate.COLLATED);
+                }
+                job.print(attr);
+            } else {
+                // Copies is unsupported, handle copies manually (yuck)
                 for (int i = 0; i < copies.get(); i++) {
                     job.print(attr);
                 }
-            //}
+            }
         }
         // No copies specified, just print
         else {
@@ -188,8 +270,31 @@ public class PrintPostScript implements Printable {
 
 
         bufferedImage.set(null);
+        scaledImage.set(null);
         bufferedPDF.set(null);
-        pdfFile.set(null);
+        releasePDFFile();
+        pdfDocument.set(null);
+    }
+
+    /**
+     * Hands the parsed PDF back to the cache, so the next print of the same
+     * document doesn't parse it again
+     */
+    private void releasePDFFile() {
+        PDFFile pdf = pdfFile.getAndSet(null);
+        if (pdfDocument.get() != null) {
+            pdfDocument.get().release(pdf);
+        }
+    }
+
+    /**
+     * @return the number of pages printed, 1 for images
+     */
+    private int getPageCount() throws PrinterException {
+        if (bufferedImage.get() == null && getPDFFile() != null) {
+            return getPDFFile().getNumPages();
+        }
+        return 1;
     }
 
     @SuppressWarnings("UnusedDeclaration")//Need to see if this should be deleted or implemented properly
@@ -394,6 +499,131 @@ public class PrintPostScript implements Printable {
 
     }
 
+    /**
+     * Returns the image scaled to the imageable area at the printer's
+     * resolution.  Java2D calls <code>print</code> several times per page
+     * (banding) and again for every copy, so the image is only scaled once
+     * per job and each call after that just draws it.
+     *
+     * @param graphics2D graphics of the page, used to find the device resolution
+     * @param pageFormat format of the page
+     * @return the image ready to be drawn over the imageable area
+     */
+    private BufferedImage getScaledImage(Graphics2D graphics2D, PageFormat pageFormat) {
+        double dotsPerInch = getDotsPerInch(graphics2D);
+        int width = Math.max(1, (int)Math.ceil(pageFormat.getImageableWidth() / DPI * dotsPerInch));
+        int height = Math.max(1, (int)Math.ceil(pageFormat.getImageableHeight() / DPI * dotsPerInch));
+
+        ScaledImage scaled = scaledImage.get();
+        if (scaled == null || scaled.width != width || scaled.height != height) {
+            BufferedImage image = bufferedImage.get();
+            // Each axis is only ever reduced, drawImage stretches whatever is left to the page
+            int scaledWidth = Math.min(image.getWidth(), width);
+            int scaledHeight = Math.min(image.getHeight(), height);
+            if (scaledWidth < image.getWidth() || scaledHeight < image.getHeight()) {
+                log.info("Scaling image " + image.getWidth() + "x" + image.getHeight() + " to " + scaledWidth + "x"
+                                 + scaledHeight + " for " + Math.round(dotsPerInch) + "dpi");
+                image = scaleDown(image, scaledWidth, scaledHeight);
+            } else {
+                image = sanitize(image);
+            }
+            scaled = new ScaledImage(image, width, height);
+            scaledImage.set(scaled);
+        }
+        return scaled.image;
+    }
+
+    /**
+     * Returns the resolution of the device behind <code>graphics2D</code>,
+     * or of the printer if the graphics are still in 72dpi page units
+     */
+    private double getDotsPerInch(Graphics2D graphics2D) {
+        AffineTransform transform = graphics2D.getTransform();
+        double dotsPerInch = DPI * Math.max(Math.hypot(transform.getScaleX(), transform.getShearY()),
+                                            Math.hypot(transform.getScaleY(), transform.getShearX()));
+
+        PrintService ps = printServiceAtomicReference.get();
+        if (ps != null) {
+            Object resolution = ps.getDefaultAttributeValue(PrinterResolution.class);
+            if (resolution instanceof PrinterResolution) {
+                int[] res = ((PrinterResolution)resolution).getResolution(PrinterResolution.DPI);
+                dotsPerInch = Math.max(dotsPerInch, Math.max(res[0], res[1]));
+            }
+        }
+
+        return dotsPerInch > DPI? dotsPerInch:DEFAULT_PRINT_DPI;
+    }
+
+    /**
+     * Downscales <code>image</code> by halving it until it is within a factor
+     * of two of the requested size, then scales the rest of the way with
+     * bicubic interpolation.  Halving keeps every source pixel contributing,
+     * where a single bicubic pass from far larger images skips most of them.
+     */
+    private static BufferedImage scaleDown(BufferedImage image, int width, int height) {
+        int type = image.getColorModel().hasAlpha()? BufferedImage.TYPE_INT_ARGB:BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+
+        do {
+            w = w > width * 2? w / 2:width;
+            h = h > height * 2? h / 2:height;
+            boolean last = w == width && h == height;
+
+            BufferedImage step = new BufferedImage(w, h, type);
+            Graphics2D g = step.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, last? RenderingHints.VALUE_INTERPOLATION_BICUBIC:
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(scaled, 0, 0, w, h, null);
+            g.dispose();
+            scaled = step;
+        } while (w != width || h != height);
+
+        return scaled;
+    }
+
+    /**
+     * FIXME:  Temporary fix for OS X 10.10 hard crash.
+     * See https://github.com/qzind/qz-print/issues/75
+     */
+    private static BufferedImage sanitize(BufferedImage imgToPrint) {
+        if (SystemUtilities.isMac()){
+            //Add more bad types here as they come up.
+            Integer[] badTypes = {BufferedImage.TYPE_BYTE_BINARY,BufferedImage.TYPE_CUSTOM};
+            if (Arrays.asList(badTypes).contains(imgToPrint.getType())){
+                BufferedImage sanitizedImage;
+                ColorModel cm = imgToPrint.getColorModel(); 
+                if (cm instanceof IndexColorModel){
+                    log.info("Image converted to 256 colors for OSX 10.10 Workaround");
+                    sanitizedImage = new BufferedImage(imgToPrint.getWidth(), imgToPrint.getHeight(), BufferedImage.TYPE_BYTE_INDEXED, (IndexColorModel)cm);
+                } else {
+                    log.info("Image converted to ARGB for OSX 10.10 Workaround");
+                    sanitizedImage = new BufferedImage(imgToPrint.getWidth(), imgToPrint.getHeight(), BufferedImage.TYPE_INT_ARGB);
+                }
+                sanitizedImage.createGraphics().drawImage(imgToPrint, 0, 0, null);
+                return sanitizedImage;
+            }
+        }
+        return imgToPrint;
+    }
+
+    /**
+     * An image scaled for a given size in device pixels
+     */
+    private static class ScaledImage {
+        private final BufferedImage image;
+        private final int width;
+        private final int height;
+
+        private ScaledImage(BufferedImage image, int width, int height) {
+            this.image = image;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
     private int printImage(Graphics graphics, PageFormat pageFormat, int pageIndex) throws PrinterException {
         /* Graphics and pageFormat are required.  Page index is zero-based */
         if (graphics == null) {
@@ -421,28 +651,9 @@ public class PrintPostScript implements Printable {
         graphics2D.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
         graphics2D.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
+        BufferedImage imgToPrint = getScaledImage(graphics2D, pageFormat);
         graphics2D.translate(pageFormat.getImageableX(), pageFormat.getImageableY());
-        BufferedImage imgToPrint = bufferedImage.get();
 
-        // FIXME:  Temporary fix for OS X 10.10 hard crash.
-        // See https://github.com/qzind/qz-print/issues/75
-        if (SystemUtilities.isMac()){
-            //Add more bad types here as they come up.
-            Integer[] badTypes = {BufferedImage.TYPE_BYTE_BINARY,BufferedImage.TYPE_CUSTOM};
-            if (Arrays.asList(badTypes).contains(imgToPrint.getType())){
-                BufferedImage sanitizedImage;
-                ColorModel cm = imgToPrint.getColorModel(); 
-                if (cm instanceof IndexColorModel){
-                    log.info("Image converted to 256 colors for OSX 10.10 Workaround");
-                    sanitizedImage = new BufferedImage(imgToPrint.getWidth(), imgToPrint.getHeight(), BufferedImage.TYPE_BYTE_INDEXED, (IndexColorModel)cm);
-                } else {
-                    log.info("Image converted to ARGB for OSX 10.10 Workaround");
-                    sanitizedImage = new BufferedImage(imgToPrint.getWidth(), imgToPrint.getHeight(), BufferedImage.TYPE_INT_ARGB);
-                }
-                sanitizedImage.createGraphics().drawImage(imgToPrint, 0, 0, null);
-                imgToPrint = sanitizedImage;
-            }
-        }
         /* Now we perform our rendering */
         graphics2D.drawImage(imgToPrint, 0, 0, (int) pageFormat.getImageableWidth(), (int) pageFormat.getImageableHeight(), imgToPrint.getMinX(), imgToPrint.getMinY(), imgToPrint.getWidth(), imgToPrint.getHeight(), null);
 
@@ -532,7 +743,11 @@ public class PrintPostScript implements Printable {
 
         if (pdfFile.get() == null && bufferedPDF.get() != null) {
             try {
-                pdfFile.set(new PDFFile(this.bufferedPDF.get()));
+                if (pdfDocument.get() != null) {
+                    pdfFile.set(pdfDocument.get().borrow());
+                } else {
+                    pdfFile.set(new PDFFile(this.bufferedPDF.get()));
+                }
             } catch (Exception e) {
                 throw new PrinterException(e.getMessage());
             }
@@ -550,9 +765,24 @@ public class PrintPostScript implements Printable {
     }
 
     public void setPDF(ByteBuffer bufferedPDF) {
+        releasePDFFile();
+        this.pdfDocument.set(null);
         this.bufferedPDF.set(bufferedPDF);
     }
 
+    /**
+     * Sets a cached PDF.  The parsed document is borrowed from the cache when
+     * printing starts and handed back once the job, including every copy, has
+     * been printed.
+     *
+     * @param document the PDF, from <code>PDFCache.getDocument</code>
+     */
+    public void setPDF(PDFCache.Document document) {
+        releasePDFFile();
+        this.pdfDocument.set(document);
+        this.bufferedPDF.set(document.getData());
+    }
+
     //TOASK: Unused, delete?
     @SuppressWarnings("UnusedDeclaration")
     public ByteBuffer getPDF() {
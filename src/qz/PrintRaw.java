@@ -26,10 +26,16 @@
 package qz;
 
 import qz.common.ByteArrayBuilder;
+import qz.common.Constants;
 import qz.common.LogIt;
 import qz.exception.InvalidFileTypeException;
 import qz.exception.NullCommandException;
 import qz.exception.NullPrintServiceException;
+import qz.printer.CopiesSupport;
+import qz.printer.GraphicRegistry;
+import qz.printer.JobStatus;
+import qz.printer.LanguageType;
+import qz.printer.PrintJobMonitor;
 import qz.utils.ByteUtilities;
 import qz.utils.FileUtilities;
 
@@ -37,15 +43,20 @@ import javax.print.*;
 import javax.print.attribute.DocAttributeSet;
 import javax.print.attribute.HashPrintRequestAttributeSet;
 import javax.print.attribute.PrintRequestAttributeSet;
+import javax.print.attribute.standard.Copies;
 import javax.print.attribute.standard.JobName;
-import javax.print.event.PrintJobEvent;
-import javax.print.event.PrintJobListener;
 import java.io.*;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Locale;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -65,13 +76,19 @@ public class PrintRaw {
     private final AtomicReference<PrintRequestAttributeSet> reqAttr = new AtomicReference<PrintRequestAttributeSet>(new HashPrintRequestAttributeSet());
     private final AtomicReference<PrintService> printServiceAtomicReference = new AtomicReference<PrintService>(null);
     private final AtomicReference<ByteArrayBuilder> rawCmds = new AtomicReference<ByteArrayBuilder>(null);
-    private final AtomicBoolean isFinished = new AtomicBoolean(false);
+    private final AtomicReference<JobStatus> jobStatus = new AtomicReference<JobStatus>(null);
+    private final AtomicReference<PrintJobMonitor> jobMonitor = new AtomicReference<PrintJobMonitor>(null);
+    private final AtomicReference<PrintJobMonitor.Listener> jobListener = new AtomicReference<PrintJobMonitor.Listener>(null);
+    private final AtomicLong jobTimeout = new AtomicLong(0);
     private final AtomicReference<Charset> charset = new AtomicReference<Charset>(Charset.defaultCharset());
     private final AtomicReference<String> jobName = new AtomicReference<String>("QZ-PRINT Raw Printing");
     private final AtomicReference<String> outputPath = new AtomicReference<String>(null);
     private final AtomicReference<String> socketHost = new AtomicReference<String>(null);
     private final AtomicReference<Integer> socketPort = new AtomicReference<Integer>(null);
     private final AtomicBoolean alternatePrint = new AtomicBoolean(false);
+    private final AtomicInteger copies = new AtomicInteger(1);
+    private final AtomicReference<LanguageType> languageType = new AtomicReference<LanguageType>(null);
+    private final Set<String> storedGraphics = Collections.synchronizedSet(new LinkedHashSet<String>());
 
     public PrintRaw() {
     }
@@ -156,14 +173,14 @@ public class PrintRaw {
      * @throws UnknownHostException
      * @throws IOException
      */
-    private boolean printToSocket() throws IOException {
+    private boolean printToSocket(ByteArrayBuilder cmds) throws IOException {
         log.info("Printing to host " + socketHost.get() + ":" + socketPort.get());
         Socket socket = null;
-        DataOutputStream out = null;
+        OutputStream out = null;
         try {
             socket = new Socket(socketHost.get(), socketPort.get());
-            out = new DataOutputStream(socket.getOutputStream());
-            out.write(getRawCmds().getByteArray());
+            out = new BufferedOutputStream(socket.getOutputStream(), Constants.OUTPUT_STREAM_SIZE);
+            cmds.writeTo(out);
         } finally {
             if (out != null) {
                 out.close();
@@ -178,12 +195,16 @@ public class PrintRaw {
     }
     
     public boolean printToFile() throws PrintException, IOException {
+        return printToFile(getRawCmds());
+    }
+
+    private boolean printToFile(ByteArrayBuilder cmds) throws IOException {
         log.info("Printing to file: " + outputPath.get());
-        OutputStream out = null;
+        FileOutputStream out = null;
 
         try {
             out = new FileOutputStream(outputPath.get());
-            out.write(this.getRawCmds().getByteArray());
+            cmds.writeTo(out.getChannel());
         } finally {
             if (out != null) {
                 out.close();
@@ -225,71 +246,197 @@ public class PrintRaw {
             throw new NullPrintServiceException("qz.PrintRaw.print() failed, no print service.");
         } else if (rawCmds.get() == null) {
             throw new NullCommandException("qz.PrintRaw.print() failed, no commands.");
-        } else if (outputPath.get() != null) {
-            return printToFile();
+        }
+
+        ByteArrayBuilder cmds = data != null? new ByteArrayBuilder(data):getRawCmds();
+        if (outputPath.get() != null) {
+            return finishDirect(printToFile(getCopiesCmds(cmds)));
         } else if (socketHost.get() != null) {
-            return printToSocket();
+            return finishDirect(printToSocket(getCopiesCmds(cmds)));
         } else if (alternatePrint.get()) {
-            return alternatePrint();
+            boolean success = finishDirect(alternatePrint(cmds));
+            commitStoredGraphics(cmds);
+            return success;
         }
 
-        SimpleDoc doc;
-        if (data != null) {
-            doc = new SimpleDoc(data, docFlavor.get(), docAttr.get());
-        } else {
-            doc = new SimpleDoc(getRawCmds().getByteArray(), docFlavor.get(), docAttr.get());
+        ByteArrayBuilder printed = cmds;
+        // Copies only apply to this job, so they don't go into reqAttr
+        PrintRequestAttributeSet attr = new HashPrintRequestAttributeSet(reqAttr.get());
+        if (getCopies() > 1) {
+            ByteArrayBuilder quantity = getQuantityCmds(cmds);
+            if (quantity != null) {
+                cmds = quantity;
+            } else if (CopiesSupport.supportsCopies(printServiceAtomicReference.get(), docFlavor.get())) {
+                log.info("Printer will print " + getCopies() + " copies");
+                attr.add(new Copies(getCopies()));
+            } else {
+                log.info("Sending " + getCopies() + " copies of the data");
+                cmds = CopiesSupport.replicate(cmds, getCopies());
+            }
         }
 
-        reqAttr.get().add(new JobName(jobName.get(), Locale.getDefault()));
+        SimpleDoc doc = new SimpleDoc(cmds.getByteArray(), docFlavor.get(), docAttr.get());
+
+        attr.add(new JobName(jobName.get(), Locale.getDefault()));
         DocPrintJob printJob = printServiceAtomicReference.get().createPrintJob();
-        printJob.addPrintJobListener(new PrintJobListener() {
-            //@Override //JDK 1.6
-            public void printDataTransferCompleted(PrintJobEvent printJobEvent) {
-                LogIt.log(printJobEvent);
-                isFinished.set(true);
-            }
 
-            //@Override //JDK 1.6
-            public void printJobCompleted(PrintJobEvent printJobEvent) {
-                LogIt.log(printJobEvent);
-                isFinished.set(true);
-            }
+        // Each job gets its own monitor so a previous job's events can't release this one
+        PrintJobMonitor monitor = new PrintJobMonitor();
+        monitor.setListener(jobListener.get());
+        printJob.addPrintJobListener(monitor);
+        jobMonitor.set(monitor);
+        jobStatus.set(JobStatus.SPOOLING);
 
-            //@Override //JDK 1.6
-            public void printJobFailed(PrintJobEvent printJobEvent) {
-                LogIt.log(printJobEvent);
-                isFinished.set(true);
-            }
+        log.info("Sending print job to printer: \"" + printServiceAtomicReference.get().getName() + "\"");
+        try {
+            printJob.print(doc, attr);
+        } catch (PrintException e) {
+            jobStatus.set(JobStatus.FAILED);
+            throw e;
+        }
 
-            //@Override //JDK 1.6
-            public void printJobCanceled(PrintJobEvent printJobEvent) {
-                LogIt.log(printJobEvent);
-                isFinished.set(true);
-            }
+        JobStatus status = monitor.await(jobTimeout.get());
+        jobStatus.set(status);
 
-            //@Override //JDK 1.6
-            public void printJobNoMoreEvents(PrintJobEvent printJobEvent) {
-                LogIt.log(printJobEvent);
-                isFinished.set(true);
-            }
+        if (status.isError()) {
+            throw new PrintException("Print job to \"" + printServiceAtomicReference.get().getName() + "\" "
+                    + status.name().toLowerCase(Locale.ENGLISH).replace('_', ' '));
+        }
+
+        log.info("Print job received by printer: \"" + printServiceAtomicReference.get().getName() + "\"");
+        commitStoredGraphics(printed);
+
+        //clear(); - Ver 1.0.8+ : Should be done from Applet instead now
+        return true;
+    }
+
+    /**
+     * Returns <code>cmds</code> with the printer language's own quantity
+     * command set, if there is more than one copy and the language allows it
+     *
+     * @return the commands printing every copy, or <code>null</code> if the quantity cannot be set
+     */
+    private ByteArrayBuilder getQuantityCmds(ByteArrayBuilder cmds) throws UnsupportedEncodingException {
+        if (getCopies() < 2) {
+            return null;
+        }
+
+        ByteArrayBuilder quantity = CopiesSupport.setQuantity(cmds, languageType.get(), getCopies(), charset.get());
+        if (quantity != null) {
+            log.info("Printing " + getCopies() + " copies with the " + languageType.get() + " quantity command");
+        }
+        return quantity;
+    }
+
+    /**
+     * Returns <code>cmds</code> printing every copy, for output which bypasses
+     * the print service.  The data is repeated if the quantity cannot be set.
+     */
+    private ByteArrayBuilder getCopiesCmds(ByteArrayBuilder cmds) throws UnsupportedEncodingException {
+        if (getCopies() < 2) {
+            return cmds;
+        }
+
+        ByteArrayBuilder quantity = getQuantityCmds(cmds);
+        if (quantity != null) {
+            return quantity;
+        }
+        log.info("Sending " + getCopies() + " copies of the data");
+        return CopiesSupport.replicate(cmds, getCopies());
+    }
+
+    /**
+     * Records that this job downloads a graphic into printer memory.  The
+     * graphic is only registered as stored on the printer once the job has
+     * printed successfully, so a job which is cleared or fails doesn't leave
+     * later jobs recalling a graphic the printer never received.
+     *
+     * @param name name of the graphic
+     */
+    public void addStoredGraphic(String name) {
+        storedGraphics.add(name);
+    }
 
-            //@Override //JDK 1.6
-            public void printJobRequiresAttention(PrintJobEvent printJobEvent) {
-                LogIt.log(printJobEvent);
+    /**
+     * @param name name of the graphic
+     * @return whether this job already downloads the graphic
+     */
+    public boolean isStoringGraphic(String name) {
+        return storedGraphics.contains(name);
+    }
+
+    /**
+     * Registers the graphics downloaded by <code>cmds</code> as stored on the
+     * printer which received them.  When auto-spooling, each spool only
+     * registers the graphics it contains.
+     */
+    private void commitStoredGraphics(ByteArrayBuilder cmds) throws UnsupportedEncodingException {
+        String printer = printServiceAtomicReference.get().getName();
+        synchronized(storedGraphics) {
+            for(Iterator<String> it = storedGraphics.iterator(); it.hasNext(); ) {
+                String name = it.next();
+                if (cmds.indexOf(name.getBytes(charset.get().name()), 0) >= 0) {
+                    log.info("Graphic " + name + " is now stored on \"" + printer + "\"");
+                    GraphicRegistry.setStored(printer, name);
+                    it.remove();
+                }
             }
-        });
+        }
+    }
 
-        log.info("Sending print job to printer: \"" + printServiceAtomicReference.get().getName() + "\"");
-        printJob.print(doc, reqAttr.get());
+    /**
+     * Records the outcome of output which bypasses the print service's job
+     * events (file, socket and alternate printing), which finish before returning.
+     *
+     * @param success value returned by the output method
+     * @return <code>success</code>
+     */
+    private boolean finishDirect(boolean success) {
+        jobMonitor.set(null);
+        jobStatus.set(success? JobStatus.COMPLETED:JobStatus.FAILED);
+        return success;
+    }
 
-        while (!isFinished.get()) {
-            Thread.sleep(100);
+    /**
+     * Returns the status of the last job sent by <code>print()</code>, or
+     * <code>null</code> if nothing was printed yet.  A job reported as
+     * <code>SENT</code> may still become <code>COMPLETED</code> or
+     * <code>FAILED</code> as the printer reports it.
+     *
+     * @return status of the last print job
+     */
+    public JobStatus getJobStatus() {
+        JobStatus status = jobStatus.get();
+        PrintJobMonitor monitor = jobMonitor.get();
+        if (status == JobStatus.SENT && monitor != null) {
+            return monitor.getStatus();
         }
+        return status;
+    }
 
-        log.info("Print job received by printer: \"" + printServiceAtomicReference.get().getName() + "\"");
+    /**
+     * Sets the listener notified when the printer reports a job completed or
+     * failed after <code>print()</code> has returned.  Applies to the jobs
+     * sent from then on.
+     *
+     * @param listener the listener, or <code>null</code> for none
+     */
+    public void setJobListener(PrintJobMonitor.Listener listener) {
+        jobListener.set(listener);
+    }
 
-        //clear(); - Ver 1.0.8+ : Should be done from Applet instead now
-        return true;
+    /**
+     * Maximum time in milliseconds <code>print()</code> waits for the print
+     * service to acknowledge a job.  Default is 0 (wait indefinitely).
+     *
+     * @param jobTimeout timeout in milliseconds, 0 to wait indefinitely
+     */
+    public void setJobTimeout(long jobTimeout) {
+        this.jobTimeout.set(jobTimeout < 0? 0:jobTimeout);
+    }
+
+    public long getJobTimeout() {
+        return jobTimeout.get();
     }
 
     /**
@@ -300,12 +447,19 @@ public class PrintRaw {
      * @throws PrintException
      */
     public boolean alternatePrint() throws PrintException {
+        return alternatePrint(getRawCmds());
+    }
+
+    private boolean alternatePrint(ByteArrayBuilder data) throws PrintException {
         File tmpFile = new File("/tmp/qz-spool-" + System.currentTimeMillis());
         try {
             outputPath.set(tmpFile.getAbsolutePath());
-            if (printToFile()) {
+            // lp makes the copies itself unless the language's quantity command can be used
+            ByteArrayBuilder cmds = getQuantityCmds(data);
+            int lpCopies = cmds == null? getCopies():1;
+            if (printToFile(cmds == null? data:cmds)) {
                 String shellCmd = "/usr/bin/lp -d \"" + printServiceAtomicReference.get().getName()
-                        + "\" -o raw \"" + tmpFile.getAbsolutePath() + "\";";
+                        + "\" -o raw" + (lpCopies > 1? " -n " + lpCopies:"") + " \"" + tmpFile.getAbsolutePath() + "\";";
                 log.info("Runtime Exec running: " + shellCmd);
                 Process process = Runtime.getRuntime().exec(new String[]{"bash", "-c", shellCmd});
                 process.waitFor();
@@ -317,7 +471,6 @@ public class PrintRaw {
             //noinspection ResultOfMethodCallIgnored
             tmpFile.delete();
             outputPath.set(null);
-            //isFinished.set(true);
         }
 
         return true;
@@ -442,6 +595,7 @@ public class PrintRaw {
      */
     public void clear() {
         getRawCmds().clear();
+        storedGraphics.clear();
         log.info("Print buffer has been cleared.");
     }
 
@@ -489,6 +643,16 @@ public class PrintRaw {
         return this.charset.get();
     }
 
+    /**
+     * Returns whether the next job is written to a file or a host in one
+     * piece, bypassing the print service
+     *
+     * @return true if an output file or host is set
+     */
+    public boolean isDirectOutput() {
+        return outputPath.get() != null || socketHost.get() != null;
+    }
+
     /**
      * Returns whether or not the print data is clear. This usually happens
      * shortly after a print, or when
@@ -512,16 +676,30 @@ public class PrintRaw {
         this.alternatePrint.set(alternatePrint);
     }
 
-    /*This warning is suppresed because this is a non-implemented method that *shouldn't* be used... */
-    public void setCopies(@SuppressWarnings("UnusedParameters") int copies) {
-        log.log(Level.WARNING, "Copies is unsupported for printHTML()",
-                new UnsupportedOperationException("Copies attribute for HTML 1.0 data has not yet been implemented"));
+    /**
+     * Sets the number of copies printed by each job.  The language's quantity
+     * command is used when possible, then the print service's
+     * <code>Copies</code> attribute, the data being sent once per copy only
+     * if neither is available.
+     *
+     * @param copies number of copies, at least 1
+     */
+    public void setCopies(int copies) {
+        this.copies.set(Math.max(1, copies));
     }
 
     public int getCopies() {
-        log.log(Level.WARNING, "Copies is unsupported for printHTML()",
-                new UnsupportedOperationException("Copies attribute for HTML 1.0 data has not yet been implemented"));
-        return -1;
+        return copies.get();
+    }
+
+    /**
+     * Sets the language of the raw commands, used to set the quantity when
+     * printing copies.  Optional, <code>null</code> if unknown.
+     *
+     * @param languageType language of the printer
+     */
+    public void setLanguageType(LanguageType languageType) {
+        this.languageType.set(languageType);
     }
 
     @SuppressWarnings("UnusedDeclaration")
@@ -536,12 +714,9 @@ public class PrintRaw {
         // RKC: PROBLEM >>> this.setCharset(rawPrintApplet.getCharset());
         this.setAlternatePrinting(alternatePrinting);
 
-        // Copies not implemented yet, so don't call
-        /*
         if (copies > 0) {
             setCopies(copies);
         }
-        */
 
         this.clear();
     }
@@ -551,6 +726,6 @@ public class PrintRaw {
     }
 
     public boolean contains(byte[] searchBytes) {
-        return ByteUtilities.indicesOfSublist(this.getByteArray(), searchBytes).length > 0;
+        return searchBytes.length > 0 && this.getRawCmds().indexOf(searchBytes, 0) >= 0;
     }
 }
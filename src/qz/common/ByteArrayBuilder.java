@@ -25,7 +25,12 @@
 
 package qz.common;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 
@@ -33,6 +38,12 @@ import java.util.ArrayList;
  * Provides a simple and efficient way for concatenating byte arrays, similar
  * in purpose to <code>StringBuilder</code>. Objects of this class are not 
  * thread safe and include no synchronization
+ *
+ * Appended arrays are kept as separate chunks and are not copied, so callers
+ * should not modify an array after appending it.  Prefer <code>writeTo</code>,
+ * <code>slice</code> or <code>getInputStream</code> over
+ * <code>getByteArray</code> for large data, which have no need to concatenate
+ * the chunks into a single array.
  * 
  */
 
@@ -44,7 +55,7 @@ import java.util.ArrayList;
 @SuppressWarnings("UnusedDeclaration")
 /*Library class, may be used outside of project context*/
 public final class ByteArrayBuilder {
-    private ArrayList<byte[]> buffer;
+    private ArrayList<ByteBuffer> buffer;
     
     private int length = 0;
     
@@ -63,7 +74,7 @@ public final class ByteArrayBuilder {
      * Creates a new <code>ByteArrayBuilder</code> and sets initial capacity to 10
      */
     public ByteArrayBuilder() {
-        buffer=new ArrayList<byte[]>(10);
+        buffer=new ArrayList<ByteBuffer>(10);
     }
     
     /**
@@ -73,7 +84,7 @@ public final class ByteArrayBuilder {
      * @param initialCapacity the initial capacity of the <code>ByteArrayBuilder</code>
      */
     public ByteArrayBuilder(int initialCapacity){
-        buffer=new ArrayList<byte[]>(initialCapacity);
+        buffer=new ArrayList<ByteBuffer>(initialCapacity);
     }
 
     /**
@@ -120,12 +131,41 @@ public final class ByteArrayBuilder {
      * @return this <code>ByteArrayBuilder</code>
      */
     public final ByteArrayBuilder append(byte[] bytes){
+        return append(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Appends part of a byte array to this <code>ByteArrayBuilder</code>
+     * without copying it. Returns this same object to allow chaining calls
+     *
+     * @param bytes the byte array to append from
+     * @param offset index of the first byte to append
+     * @param len number of bytes to append
+     * @return this <code>ByteArrayBuilder</code>
+     */
+    public final ByteArrayBuilder append(byte[] bytes, int offset, int len){
         this.resetContents();
-        length+=bytes.length;
-        buffer.add(bytes);
+        if (len > 0) {
+            length+=len;
+            buffer.add(ByteBuffer.wrap(bytes, offset, len).slice());
+        }
         return this;
     }
-    
+
+    /**
+     * Appends the contents of another <code>ByteArrayBuilder</code> without
+     * copying them. Returns this same object to allow chaining calls
+     *
+     * @param bytes the <code>ByteArrayBuilder</code> to append
+     * @return this <code>ByteArrayBuilder</code>
+     */
+    public final ByteArrayBuilder append(ByteArrayBuilder bytes){
+        for(ByteBuffer bb : new ArrayList<ByteBuffer>(bytes.buffer)) {
+            append(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+        }
+        return this;
+    }
+
     /**
      * Convenience method for append(byte[]) combined with a StringBuffer of specified
      * charset
@@ -156,20 +196,269 @@ public final class ByteArrayBuilder {
      * Returns the full contents of this <code>ByteArrayBuilder</code> as
      * a single <code>byte</code> array. The result is cached, so multiple
      * calls with no changes to the contents of the <code>ByteArrayBuilder</code>
-     * are efficient.
+     * are efficient.  The chunks are replaced by the result so the data is
+     * not held twice.
      * 
      * @return The contents of this <code>ByteArrayBuilder</code> as a single <code>byte</code> array
      */
     public byte[] getByteArray(){
         if(contents==null)
         {
-            contents=new byte[this.getLength()];
-            int pos=0;
-            for (byte[] bs:buffer){
-                System.arraycopy(bs, 0, contents, pos, bs.length);
-                pos+=bs.length;
+            ByteBuffer single = buffer.size() == 1? buffer.get(0):null;
+            if (single != null && single.arrayOffset() == 0 && single.array().length == length) {
+                contents = single.array();
+            } else {
+                contents = new byte[length];
+                getBytes(0, length, contents, 0);
+                buffer.clear();
+                buffer.add(ByteBuffer.wrap(contents));
             }
         }
         return contents;
     }
+
+    /**
+     * Copies the bytes from <code>srcBegin</code> up to <code>srcEnd</code>
+     * into <code>dst</code>, like <code>StringBuilder.getChars</code>
+     *
+     * @param srcBegin index of the first byte to copy
+     * @param srcEnd index after the last byte to copy
+     * @param dst destination array
+     * @param dstBegin start offset in the destination array
+     */
+    public void getBytes(int srcBegin, int srcEnd, byte[] dst, int dstBegin) {
+        checkRange(srcBegin, srcEnd);
+        int pos = 0;
+        for(ByteBuffer bb : buffer) {
+            int chunkLength = bb.remaining();
+            if (pos + chunkLength > srcBegin) {
+                int from = Math.max(srcBegin - pos, 0);
+                int to = Math.min(srcEnd - pos, chunkLength);
+                System.arraycopy(bb.array(), bb.arrayOffset() + from, dst, dstBegin, to - from);
+                dstBegin += to - from;
+            }
+            pos += chunkLength;
+            if (pos >= srcEnd) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the first occurrence of <code>pattern</code> at or
+     * after <code>fromIndex</code>, searching the chunks in place in a single
+     * pass (Knuth-Morris-Pratt)
+     *
+     * @param pattern bytes to search for
+     * @param fromIndex index to start searching from
+     * @return index of the first match, or -1 if not found
+     */
+    public int indexOf(byte[] pattern, int fromIndex) {
+        if (pattern.length == 0) {
+            return fromIndex <= length? fromIndex:-1;
+        }
+        return new Matcher(pattern, fromIndex).find();
+    }
+
+    /**
+     * Returns a <code>Matcher</code> which finds successive, non-overlapping
+     * occurrences of <code>pattern</code> starting at <code>fromIndex</code>.
+     *
+     * @param pattern bytes to search for
+     * @param fromIndex index to start searching from
+     * @return a matcher over the current chunks
+     */
+    public Matcher matcher(byte[] pattern, int fromIndex) {
+        return new Matcher(pattern, fromIndex);
+    }
+
+    /**
+     * Finds successive occurrences of a pattern.  The failure table is built
+     * once and the search resumes from the chunk and offset where the last
+     * match ended, so all matches are found in a single pass over the data.
+     */
+    public final class Matcher {
+        private final byte[] pattern;
+        // Length of the longest proper prefix of pattern[0..i] which is also its suffix
+        private final int[] failure;
+        private int chunk = 0;
+        private int offset;
+        private int pos = 0;
+
+        private Matcher(byte[] pattern, int fromIndex) {
+            this.pattern = pattern;
+            failure = new int[pattern.length];
+            for(int i = 1, k = 0; i < pattern.length; i++) {
+                while(k > 0 && pattern[i] != pattern[k]) {
+                    k = failure[k - 1];
+                }
+                if (pattern[i] == pattern[k]) {
+                    k++;
+                }
+                failure[i] = k;
+            }
+
+            // Skip whole chunks before fromIndex
+            offset = Math.max(fromIndex, 0);
+            while(chunk < buffer.size() && offset >= buffer.get(chunk).remaining()) {
+                int chunkLength = buffer.get(chunk).remaining();
+                offset -= chunkLength;
+                pos += chunkLength;
+                chunk++;
+            }
+        }
+
+        /**
+         * Returns the index of the next occurrence of the pattern after the
+         * end of the previous one.
+         *
+         * @return index of the match, or -1 if there are no more
+         */
+        public int find() {
+            if (pattern.length == 0) {
+                return -1;
+            }
+            int matched = 0;
+            for(; chunk < buffer.size(); chunk++, offset = 0) {
+                ByteBuffer bb = buffer.get(chunk);
+                int chunkLength = bb.remaining();
+                byte[] array = bb.array();
+                int base = bb.arrayOffset();
+                while(offset < chunkLength) {
+                    byte b = array[base + offset++];
+                    while(matched > 0 && b != pattern[matched]) {
+                        matched = failure[matched - 1];
+                    }
+                    if (b == pattern[matched]) {
+                        matched++;
+                    }
+                    if (matched == pattern.length) {
+                        return pos + offset - pattern.length;
+                    }
+                }
+                pos += chunkLength;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Returns a new <code>ByteArrayBuilder</code> over the bytes from
+     * <code>begin</code> up to <code>end</code>.  The data is shared, not
+     * copied.
+     *
+     * @param begin index of the first byte
+     * @param end index after the last byte
+     * @return a view of the given range
+     */
+    public ByteArrayBuilder slice(int begin, int end) {
+        checkRange(begin, end);
+        ByteArrayBuilder slice = new ByteArrayBuilder();
+        int pos = 0;
+        for(ByteBuffer bb : buffer) {
+            int chunkLength = bb.remaining();
+            if (pos + chunkLength > begin) {
+                int from = Math.max(begin - pos, 0);
+                int to = Math.min(end - pos, chunkLength);
+                slice.append(bb.array(), bb.arrayOffset() + from, to - from);
+            }
+            pos += chunkLength;
+            if (pos >= end) {
+                break;
+            }
+        }
+        return slice;
+    }
+
+    /**
+     * Writes the contents of this <code>ByteArrayBuilder</code> to
+     * <code>out</code> chunk by chunk.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        for(ByteBuffer bb : buffer) {
+            out.write(bb.array(), bb.arrayOffset(), bb.remaining());
+        }
+    }
+
+    /**
+     * Writes the contents of this <code>ByteArrayBuilder</code> to
+     * <code>channel</code> chunk by chunk.
+     *
+     * @param channel the channel to write to
+     * @throws IOException if the channel cannot be written
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        for(ByteBuffer bb : buffer) {
+            ByteBuffer chunk = bb.duplicate();
+            while(chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+        }
+    }
+
+    /**
+     * Returns an <code>InputStream</code> reading the current contents of
+     * this <code>ByteArrayBuilder</code>.  Bytes appended after the call are
+     * not included.
+     *
+     * @return a stream over the contents
+     */
+    public InputStream getInputStream() {
+        return new ChunkInputStream(new ArrayList<ByteBuffer>(buffer));
+    }
+
+    private void checkRange(int begin, int end) {
+        if (begin < 0 || end > length || begin > end) {
+            throw new IndexOutOfBoundsException("Range [" + begin + ", " + end + ") out of bounds for length " + length);
+        }
+    }
+
+    /**
+     * Reads through the chunks in order without joining them
+     */
+    private static class ChunkInputStream extends InputStream {
+        private final ArrayList<ByteBuffer> chunks;
+        private int index = 0;
+        private ByteBuffer current;
+
+        ChunkInputStream(ArrayList<ByteBuffer> chunks) {
+            this.chunks = chunks;
+        }
+
+        private ByteBuffer current() {
+            while((current == null || !current.hasRemaining()) && index < chunks.size()) {
+                current = chunks.get(index++).duplicate();
+            }
+            return current == null || !current.hasRemaining()? null:current;
+        }
+
+        @Override
+        public int read() {
+            ByteBuffer bb = current();
+            return bb == null? -1:bb.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer bb = current();
+            if (bb == null) {
+                return -1;
+            }
+            int count = Math.min(len, bb.remaining());
+            bb.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            ByteBuffer bb = current();
+            return bb == null? 0:bb.remaining();
+        }
+    }
 }
@@ -10,6 +10,7 @@ public class Constants {
     public static final char[] HEXES_ARRAY = HEXES.toCharArray();
     public static final int OUTPUT_STREAM_SIZE = 20480;
     public static final int BYTE_BUFFER_SIZE = 8192;
+    public static final int LOG_COMMANDS_SIZE = 65536;
     public static final int APPEND_XML = 1;
     public static final String VERSION = "1.9.8";
     public static final int APPEND_RAW = 2;
@@ -17,6 +18,7 @@ public class Constants {
     public static final int APPEND_IMAGE_PS = 4;
     public static final int APPEND_PDF = 8;
     public static final int APPEND_HTML = 16;
+    public static final int APPEND_PDF_RAW = 32;
 
     /* QZ-Tray Constants */
     public static final String BLOCK_FILE = "blocked";
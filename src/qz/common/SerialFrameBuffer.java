@@ -0,0 +1,178 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT:  This software is dual-licensed
+ *
+ * LGPL 2.1
+ * This is free software.  This software and source code are released under
+ * the "LGPL 2.1 License".  A copy of this license should be distributed with
+ * this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE
+ * This software and source code *may* instead be distributed under the
+ * "QZ Industries Source Code License", available by request ONLY.  If source
+ * code for this project is to be made proprietary for an individual and/or a
+ * commercial entity, written permission via a copy of the "QZ Industries Source
+ * Code License" must be obtained first.  If you've obtained a copy of the
+ * proprietary license, the terms and conditions of the license apply only to
+ * the licensee identified in the agreement.  Only THEN may the LGPL 2.1 license
+ * be voided.
+ *
+ */
+
+package qz.common;
+
+import java.util.logging.Logger;
+
+/**
+ * Finds the responses in data received from a serial port.  Incoming bytes
+ * go into a fixed size ring buffer while the begin and end patterns are
+ * matched one byte at a time, so each chunk received is only looked at once
+ * no matter how much data came before it.
+ *
+ * A response starts at the last begin pattern received and runs up to, but
+ * not including, the next end pattern.  A response longer than the buffer
+ * is dropped and the next begin pattern is waited for.
+ *
+ * @author Tres Finocchiaro
+ */
+public class SerialFrameBuffer {
+
+    private static final Logger log = Logger.getLogger(SerialFrameBuffer.class.getName());
+
+    /**
+     * Receives each complete response
+     */
+    public interface FrameListener {
+        /**
+         * @param frame the response, starting with the begin pattern
+         */
+        void frameReceived(byte[] frame);
+    }
+
+    private final byte[] buffer;
+    private long written = 0;   // total bytes received, the next byte goes at written % buffer.length
+
+    private final Pattern begin;
+    private final Pattern end;
+    private long frameStart = -1;   // position of the current begin pattern, -1 while waiting for one
+
+    /**
+     * @param capacity size of the ring buffer, the longest response kept
+     * @param begin pattern starting each response
+     * @param end pattern ending each response
+     */
+    public SerialFrameBuffer(int capacity, byte[] begin, byte[] end) {
+        this.buffer = new byte[Math.max(capacity, begin.length + end.length)];
+        this.begin = new Pattern(begin);
+        this.end = new Pattern(end);
+    }
+
+    /**
+     * Adds received bytes, handing each response completed by them to <code>listener</code>
+     *
+     * @param data bytes read from the port
+     * @param listener receives the complete responses, in order
+     */
+    public void append(byte[] data, FrameListener listener) {
+        for(byte b : data) {
+            if (frameStart < 0 && begin.length() == 0) {
+                // Without a begin pattern, each response starts right after the last
+                frameStart = written;
+            }
+            buffer[(int)(written % buffer.length)] = b;
+            written++;
+
+            if (begin.match(b)) {
+                // A newer response replaces any unfinished one
+                frameStart = written - begin.length();
+                end.reset();
+            } else if (frameStart >= 0) {
+                if (written - frameStart > buffer.length) {
+                    // The start of the response has been overwritten, even if this byte ends it
+                    log.warning("Serial response longer than " + buffer.length + " bytes, discarding");
+                    frameStart = -1;
+                    end.reset();
+                } else if (end.match(b)) {
+                    long frameEnd = written - end.length();
+                    if (frameEnd >= frameStart + begin.length()) {
+                        listener.frameReceived(copy(frameStart, frameEnd));
+                        frameStart = -1;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets any partial response
+     */
+    public void clear() {
+        frameStart = -1;
+        begin.reset();
+        end.reset();
+    }
+
+    private byte[] copy(long from, long to) {
+        byte[] frame = new byte[(int)(to - from)];
+        int start = (int)(from % buffer.length);
+        int first = Math.min(frame.length, buffer.length - start);
+        System.arraycopy(buffer, start, frame, 0, first);
+        System.arraycopy(buffer, 0, frame, first, frame.length - first);
+        return frame;
+    }
+
+    /**
+     * Matches a byte pattern as bytes arrive, using the Knuth-Morris-Pratt
+     * failure table so overlapping partial matches aren't missed
+     */
+    private static class Pattern {
+        private final byte[] bytes;
+        private final int[] failure;
+        private int matched = 0;
+
+        private Pattern(byte[] bytes) {
+            this.bytes = bytes;
+            this.failure = new int[bytes.length];
+            for(int i = 1, k = 0; i < bytes.length; i++) {
+                while(k > 0 && bytes[i] != bytes[k]) {
+                    k = failure[k - 1];
+                }
+                if (bytes[i] == bytes[k]) {
+                    k++;
+                }
+                failure[i] = k;
+            }
+        }
+
+        /**
+         * @return whether <code>b</code> completes the pattern
+         */
+        private boolean match(byte b) {
+            if (bytes.length == 0) {
+                return false;
+            }
+            while(matched > 0 && b != bytes[matched]) {
+                matched = failure[matched - 1];
+            }
+            if (b == bytes[matched]) {
+                matched++;
+            }
+            if (matched == bytes.length) {
+                matched = failure[matched - 1];
+                return true;
+            }
+            return false;
+        }
+
+        private void reset() {
+            matched = 0;
+        }
+
+        private int length() {
+            return bytes.length;
+        }
+    }
+}
@@ -2,10 +2,11 @@ package qz.common;
 
 import jssc.*;
 import qz.exception.SerialException;
-import qz.utils.ByteUtilities;
 import qz.utils.SerialUtilities;
 
 import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -18,6 +19,12 @@ public class SerialIO {
 
     private static final Logger log = Logger.getLogger(SerialIO.class.getName());
 
+    // Longest response kept while waiting for its end, can be overridden with the serialBufferSize system property
+    private static final int RX_BUFFER_SIZE = Integer.getInteger("serialBufferSize", 65536);
+
+    // Responses kept for getOutput() before the oldest are dropped
+    private static final int MAX_PENDING_RESPONSES = 100;
+
     // Serial port attributes obtained from the system
     private int baudRate; // = -1; //SerialPort.BAUDRATE_9600;
     private int dataBits; // = -1; //SerialPort.DATABITS_8;
@@ -32,14 +39,32 @@ public class SerialIO {
     // Timeout to wait before giving up on reading the specified amount of bytes
     private int timeout;
     
-    // A buffer to hold data returned from the serial port
-    private ByteArrayBuilder outputBuffer;
+    // Finds the responses in the data returned from the serial port
+    private SerialFrameBuffer outputBuffer;
+
+    // Responses waiting to be read with getOutput(), unless pushed to the listener
+    private final BlockingQueue<byte[]> responses = new LinkedBlockingQueue<byte[]>(MAX_PENDING_RESPONSES);
+    private volatile SerialFrameBuffer.FrameListener responseListener;
+
+    private final SerialFrameBuffer.FrameListener responseHandler = new SerialFrameBuffer.FrameListener() {
+        public void frameReceived(byte[] frame) {
+            // TODO:  Use specified charset in PrintApplet.
+            log.info(new String(frame));
+            SerialFrameBuffer.FrameListener listener = responseListener;
+            if (listener != null) {
+                listener.frameReceived(frame);
+            } else {
+                while(!responses.offer(frame)) {
+                    log.warning("Serial responses not read, dropping the oldest");
+                    responses.poll();
+                }
+            }
+        }
+    };
     
     // The information to be sent to the serial port
     private ByteArrayBuilder inputBuffer;
     
-    private byte[] output;
-    
     private SerialPort port;
     private String serialPorts;
     private String[] portArray;
@@ -79,18 +104,36 @@ public class SerialIO {
         return closed;
     }
     
+    /**
+     * Returns the oldest response not yet cleared.  Responses are only kept
+     * here while no listener is set.
+     * @return the response, or <code>null</code> if there is none
+     */
     public byte[] getOutput() {
         // TODO:  Honor charset settings from PrintApplet.
-        return output;
+        return responses.peek();
     }
     
+    /**
+     * Removes the response returned by <code>getOutput()</code>
+     */
     public void clearOutput() {
-        output = null;
+        responses.poll();
+    }
+
+    /**
+     * Pushes each response to <code>listener</code> as soon as it is
+     * received, on the port's event thread, instead of keeping it for
+     * <code>getOutput()</code>
+     * @param listener receives the responses, or <code>null</code> to keep them for <code>getOutput()</code>
+     */
+    public void setResponseListener(SerialFrameBuffer.FrameListener listener) {
+        this.responseListener = listener;
     }
     
-    private ByteArrayBuilder getOutputBuffer() {
+    private synchronized SerialFrameBuffer getOutputBuffer() {
         if (this.outputBuffer == null) {
-            this.outputBuffer = new ByteArrayBuilder();
+            this.outputBuffer = new SerialFrameBuffer(RX_BUFFER_SIZE, begin, end);
         }
         return this.outputBuffer;
     }
@@ -112,6 +155,8 @@ public class SerialIO {
     public boolean open(String portName) throws SerialPortException {
         if (port == null) {
             port = new SerialPort(this.portName = portName);
+            getOutputBuffer().clear();
+            responses.clear();
             try {
                 port.openPort();
                 port.addEventListener(new SerialPortEventListener() {
@@ -222,20 +267,8 @@ public class SerialIO {
         try {
             // Receive data
             if (event.isRXCHAR()) {
-                getOutputBuffer().append(port.readBytes(event.getEventValue(), timeout));
-                
-                int[] beginPos = ByteUtilities.indicesOfSublist(getOutputBuffer().getByteArray(), begin);
-                int[] endPos = ByteUtilities.indicesOfSublist(getOutputBuffer().getByteArray(), end);
-                if (beginPos.length > 0 && endPos.length > 0) {
-                    int _begin = beginPos[beginPos.length -1];
-                    int _end  = endPos[endPos.length -1];
-                    // TODO:  Use specified charset in PrintApplet.
-                    log.info(new String(getOutputBuffer().getByteArray(), _begin, _end - _begin));
-                    output = new byte[_end - _begin];
-                    System.arraycopy(getOutputBuffer().getByteArray(), _begin, output, 0, _end - _begin);
-                    getOutputBuffer().clear();
-                }
-                
+                // Only the new bytes are looked at, complete responses go to responseHandler
+                getOutputBuffer().append(port.readBytes(event.getEventValue(), timeout), responseHandler);
             }
         } catch (SerialPortException e) {
             log.log(Level.SEVERE, "Exception occured while reading data from port.", e);
@@ -292,9 +325,20 @@ public class SerialIO {
     public void send() throws SerialPortException {
         port.setParams(baudRate, dataBits, stopBits, parity);
         port.setFlowControlMode(flowControl);
-        log.info("Sending data to [" + portName + "]:\r\n\r\n" + new String(getInputBuffer().getByteArray()) + "\r\n\r\n");
-        port.writeBytes(getInputBuffer().getByteArray());
-        getInputBuffer().clear();
+        ByteArrayBuilder data = getInputBuffer();
+        log.info("Sending " + data.getLength() + " bytes to [" + portName + "]");
+
+        // Write in blocks rather than joining the whole buffer into one array
+        byte[] block = new byte[Math.min(data.getLength(), Constants.BYTE_BUFFER_SIZE)];
+        for(int pos = 0; pos < data.getLength(); pos += block.length) {
+            int len = Math.min(block.length, data.getLength() - pos);
+            if (len < block.length) {
+                block = new byte[len];
+            }
+            data.getBytes(pos, pos + len, block, 0);
+            port.writeBytes(block);
+        }
+        data.clear();
     }
     
     public void append(byte[] bytes) {
@@ -307,16 +351,18 @@ public class SerialIO {
         return begin;
     }
 
-    public void setBegin(byte[] begin) {
+    public synchronized void setBegin(byte[] begin) {
         this.begin = begin;
+        this.outputBuffer = null;
     }
 
     public byte[] getEnd() {
         return end;
     }
 
-    public void setEnd(byte[] end) {
+    public synchronized void setEnd(byte[] end) {
         this.end = end;
+        this.outputBuffer = null;
     }
     
     /**
@@ -0,0 +1,218 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT:  This software is dual-licensed
+ *
+ * LGPL 2.1
+ * This is free software.  This software and source code are released under
+ * the "LGPL 2.1 License".  A copy of this license should be distributed with
+ * this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE
+ * This software and source code *may* instead be distributed under the
+ * "QZ Industries Source Code License", available by request ONLY.  If source
+ * code for this project is to be made proprietary for an individual and/or a
+ * commercial entity, written permission via a copy of the "QZ Industries Source
+ * Code License" must be obtained first.  If you've obtained a copy of the
+ * proprietary license, the terms and conditions of the license apply only to
+ * the licensee identified in the agreement.  Only THEN may the LGPL 2.1 license
+ * be voided.
+ *
+ */
+
+package qz.printer;
+
+import qz.common.ByteArrayBuilder;
+
+import javax.print.DocFlavor;
+import javax.print.PrintService;
+import javax.print.attribute.Attribute;
+import javax.print.attribute.standard.Copies;
+import javax.print.attribute.standard.CopiesSupported;
+import javax.print.attribute.standard.SheetCollate;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Decides how copies of a job are made.  Printing each copy as a separate
+ * job re-renders and re-spools the whole document, so copies are left to the
+ * print service when it supports them, or for raw printers to the language's
+ * own quantity command.
+ *
+ * Many print services claim to support the <code>Copies</code> category and
+ * then ignore it, so a service is only trusted if it also accepts the value
+ * for the flavor being printed and reports a supported range above 1.  The
+ * result is cached per printer and flavor.  Native copies can be turned off
+ * entirely with the <code>nativeCopies=false</code> system property.
+ *
+ * @author Tres Finocchiaro
+ */
+public class CopiesSupport {
+
+    private static final Logger log = Logger.getLogger(CopiesSupport.class.getName());
+
+    private static final boolean NATIVE_COPIES = Boolean.parseBoolean(System.getProperty("nativeCopies", "true"));
+
+    private static final ConcurrentHashMap<String,Boolean> probes = new ConcurrentHashMap<String,Boolean>();
+
+    /**
+     * @param ps the printer
+     * @param flavor flavor of the document to print
+     * @return whether <code>ps</code> honours the <code>Copies</code> attribute
+     */
+    public static boolean supportsCopies(PrintService ps, DocFlavor flavor) {
+        return isSupported(ps, flavor, new Copies(2));
+    }
+
+    /**
+     * @param ps the printer
+     * @param flavor flavor of the document to print
+     * @return whether <code>ps</code> can collate copies of a multi-page document
+     */
+    public static boolean supportsCollation(PrintService ps, DocFlavor flavor) {
+        return isSupported(ps, flavor, SheetCollate.COLLATED);
+    }
+
+    /**
+     * Forgets the cached probes, i.e. after the printers were reconfigured
+     */
+    public static void clear() {
+        probes.clear();
+    }
+
+    private static boolean isSupported(PrintService ps, DocFlavor flavor, Attribute attribute) {
+        if (!NATIVE_COPIES || ps == null) {
+            return false;
+        }
+
+        String key = ps.getName() + "|" + flavor + "|" + attribute.getName();
+        Boolean supported = probes.get(key);
+        if (supported == null) {
+            supported = probe(ps, flavor, attribute);
+            probes.put(key, supported);
+            log.info("Printer \"" + ps.getName() + "\" " + (supported? "supports":"does not support") + " "
+                             + attribute.getName() + " for " + flavor);
+        }
+        return supported;
+    }
+
+    private static boolean probe(PrintService ps, DocFlavor flavor, Attribute attribute) {
+        try {
+            if (!ps.isAttributeCategorySupported(attribute.getCategory())
+                    || !ps.isAttributeValueSupported(attribute, flavor, null)) {
+                return false;
+            }
+            if (attribute instanceof Copies) {
+                Object range = ps.getSupportedAttributeValues(Copies.class, flavor, null);
+                return range instanceof CopiesSupported && ((CopiesSupported)range).contains(2);
+            }
+            return true;
+        } catch (IllegalArgumentException e) {
+            // The flavor itself isn't supported
+            return false;
+        }
+    }
+
+    /**
+     * Sets the quantity of a single ZPL or EPL label, by adding
+     * <code>^PQ</code> before its <code>^XZ</code> or by changing its
+     * <code>P1</code> print command.  The printer then prints the copies
+     * without the label being sent again.
+     *
+     * Data holding several labels is left alone, as the printer would
+     * print all copies of each label before the next instead of repeating
+     * the whole job.
+     *
+     * @param cmds the raw commands
+     * @param languageType language of the commands
+     * @param copies number of copies
+     * @param charset charset of the commands
+     * @return the commands printing <code>copies</code> copies, or
+     * <code>null</code> if the quantity cannot be set
+     */
+    public static ByteArrayBuilder setQuantity(ByteArrayBuilder cmds, LanguageType languageType, int copies,
+                                               Charset charset) throws UnsupportedEncodingException {
+        if (languageType == null) {
+            return null;
+        }
+
+        switch (languageType) {
+            case ZPL:
+            case ZPLII:
+                if (cmds.indexOf("^PQ".getBytes(charset.name()), 0) >= 0) {
+                    return null; // quantity already set by the caller
+                }
+                byte[] end = "^XZ".getBytes(charset.name());
+                int endPos = cmds.indexOf(end, 0);
+                if (endPos < 0 || cmds.indexOf(end, endPos + end.length) >= 0) {
+                    return null;
+                }
+                return splice(cmds, endPos, 0, ("^PQ" + copies).getBytes(charset.name()));
+            case EPL:
+            case EPL2:
+                int printPos = findSingleLine(cmds, "P1".getBytes(charset.name()));
+                if (printPos < 0) {
+                    return null;
+                }
+                return splice(cmds, printPos, 2, ("P" + copies).getBytes(charset.name()));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Repeats the commands, the fallback when neither the printer nor the
+     * language can make copies.  The data is shared, not copied.
+     *
+     * @param cmds the raw commands
+     * @param copies number of copies
+     * @return the commands repeated <code>copies</code> times
+     */
+    public static ByteArrayBuilder replicate(ByteArrayBuilder cmds, int copies) {
+        ByteArrayBuilder replicated = new ByteArrayBuilder();
+        for (int i = 0; i < copies; i++) {
+            replicated.append(cmds);
+        }
+        return replicated;
+    }
+
+    /**
+     * @return the position of the only line consisting of <code>line</code>, or -1 if there are none or several
+     */
+    private static int findSingleLine(ByteArrayBuilder cmds, byte[] line) {
+        byte[] one = new byte[1];
+        int found = -1;
+        for (int pos = cmds.indexOf(line, 0); pos >= 0; pos = cmds.indexOf(line, pos + 1)) {
+            boolean lineStart = pos == 0 || byteAt(cmds, pos - 1, one) == '\n';
+            int after = pos + line.length;
+            boolean lineEnd = after == cmds.getLength();
+            if (!lineEnd) {
+                byte next = byteAt(cmds, after, one);
+                lineEnd = next == '\n' || next == '\r';
+            }
+            if (lineStart && lineEnd) {
+                if (found >= 0) {
+                    return -1;
+                }
+                found = pos;
+            }
+        }
+        return found;
+    }
+
+    private static byte byteAt(ByteArrayBuilder cmds, int pos, byte[] one) {
+        cmds.getBytes(pos, pos + 1, one, 0);
+        return one[0];
+    }
+
+    private static ByteArrayBuilder splice(ByteArrayBuilder cmds, int pos, int removed, byte[] inserted) {
+        return new ByteArrayBuilder()
+                .append(cmds.slice(0, pos))
+                .append(inserted)
+                .append(cmds.slice(pos + removed, cmds.getLength()));
+    }
+}
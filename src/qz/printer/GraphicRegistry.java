@@ -0,0 +1,84 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT:  This software is dual-licensed
+ *
+ * LGPL 2.1
+ * This is free software.  This software and source code are released under
+ * the "LGPL 2.1 License".  A copy of this license should be distributed with
+ * this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE
+ * This software and source code *may* instead be distributed under the
+ * "QZ Industries Source Code License", available by request ONLY.  If source
+ * code for this project is to be made proprietary for an individual and/or a
+ * commercial entity, written permission via a copy of the "QZ Industries Source
+ * Code License" must be obtained first.  If you've obtained a copy of the
+ * proprietary license, the terms and conditions of the license apply only to
+ * the licensee identified in the agreement.  Only THEN may the LGPL 2.1 license
+ * be voided.
+ *
+ */
+
+package qz.printer;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the graphics already downloaded into the memory of each
+ * printer, so they only need to be sent once and can be recalled by name
+ * afterwards.  Graphics are stored in printer RAM, which is lost when the
+ * printer is turned off, so the entries of a printer should be cleared if it
+ * was restarted.
+ *
+ * @author Tres Finocchiaro
+ */
+public class GraphicRegistry {
+
+    private static final ConcurrentHashMap<String,Set<String>> stored = new ConcurrentHashMap<String,Set<String>>();
+
+    private static Set<String> getStored(String printer) {
+        Set<String> names = stored.get(printer);
+        if (names == null) {
+            Set<String> created = Collections.synchronizedSet(new HashSet<String>());
+            names = stored.putIfAbsent(printer, created);
+            if (names == null) {
+                names = created;
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @param printer name of the printer
+     * @param name name of the graphic
+     * @return true if the graphic was already sent to the printer
+     */
+    public static boolean isStored(String printer, String name) {
+        return getStored(printer).contains(name);
+    }
+
+    /**
+     * Records that the graphic has been sent to the printer
+     *
+     * @param printer name of the printer
+     * @param name name of the graphic
+     */
+    public static void setStored(String printer, String name) {
+        getStored(printer).add(name);
+    }
+
+    /**
+     * Forgets the graphics sent to a printer, so they will be sent again
+     *
+     * @param printer name of the printer
+     */
+    public static void clear(String printer) {
+        stored.remove(printer);
+    }
+}
@@ -0,0 +1,169 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT:  This software is dual-licensed
+ *
+ * LGPL 2.1
+ * This is free software.  This software and source code are released under
+ * the "LGPL 2.1 License".  A copy of this license should be distributed with
+ * this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE
+ * This software and source code *may* instead be distributed under the
+ * "QZ Industries Source Code License", available by request ONLY.  If source
+ * code for this project is to be made proprietary for an individual and/or a
+ * commercial entity, written permission via a copy of the "QZ Industries Source
+ * Code License" must be obtained first.  If you've obtained a copy of the
+ * proprietary license, the terms and conditions of the license apply only to
+ * the licensee identified in the agreement.  Only THEN may the LGPL 2.1 license
+ * be voided.
+ *
+ */
+
+package qz.printer;
+
+import qz.utils.ByteUtilities;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of converted raw image commands, bounded by the
+ * total size of the cached commands.  Entries are keyed by a digest of the
+ * source image bytes plus every parameter affecting the conversion, so the
+ * same logo printed again skips both decoding and conversion.
+ *
+ * @author Tres Finocchiaro
+ */
+public class ImageCache {
+
+    private final LinkedHashMap<String,byte[]> entries = new LinkedHashMap<String,byte[]>(16, 0.75f, true);
+
+    private long maxSize;
+    private long size = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param maxSize maximum total size of the cached commands in bytes, 0 to disable caching
+     */
+    public ImageCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Builds a cache key from the source image and the conversion parameters
+     *
+     * @param source the encoded image, as read from its URL
+     * @param params every setting which changes the converted output
+     * @return the cache key
+     */
+    public static String getKey(byte[] source, Object... params) {
+        StringBuilder key = new StringBuilder(getDigest(source));
+        for (Object param : params) {
+            key.append('|').append(param);
+        }
+        return key.toString();
+    }
+
+    private static String getDigest(byte[] source) {
+        try {
+            return ByteUtilities.bytesToHex(MessageDigest.getInstance("SHA-1").digest(source));
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param key key from <code>getKey</code>
+     * @return the cached commands, or <code>null</code> if not cached
+     */
+    public synchronized byte[] get(String key) {
+        byte[] commands = entries.get(key);
+        if (commands == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return commands;
+    }
+
+    /**
+     * Caches <code>commands</code>, evicting the least recently used entries
+     * until the cache fits.  Commands larger than the whole cache are not kept.
+     *
+     * @param key key from <code>getKey</code>
+     * @param commands converted commands, which must not be modified afterwards
+     */
+    public synchronized void put(String key, byte[] commands) {
+        if (commands.length > maxSize) {
+            return;
+        }
+
+        byte[] previous = entries.put(key, commands);
+        if (previous != null) {
+            size -= previous.length;
+        }
+        size += commands.length;
+        trim();
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize maximum total size of the cached commands in bytes, 0 to disable caching
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        trim();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String,byte[]>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().getValue().length;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @return hit, miss and eviction counts and the current size, i.e. for logging
+     */
+    @Override
+    public synchronized String toString() {
+        return "ImageCache [entries=" + entries.size() + ", size=" + size + "/" + maxSize
+                + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT:  This software is dual-licensed
+ *
+ * LGPL 2.1
+ * This is free software.  This software and source code are released under
+ * the "LGPL 2.1 License".  A copy of this license should be distributed with
+ * this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE
+ * This software and source code *may* instead be distributed under the
+ * "QZ Industries Source Code License", available by request ONLY.  If source
+ * code for this project is to be made proprietary for an individual and/or a
+ * commercial entity, written permission via a copy of the "QZ Industries Source
+ * Code License" must be obtained first.  If you've obtained a copy of the
+ * proprietary license, the terms and conditions of the license apply only to
+ * the licensee identified in the agreement.  Only THEN may the LGPL 2.1 license
+ * be voided.
+ *
+ */
+
+package qz.printer;
+
+import java.awt.image.*;
+
+/**
+ * Reads the pixels of a <code>BufferedImage</code> one row at a time as
+ * ARGB values, the same as <code>BufferedImage.getRGB</code> would return.
+ * The common image types are read straight from their <code>DataBuffer</code>
+ * so no per-pixel color model calls or full-image arrays are needed, any other
+ * type falls back to <code>getRGB</code> one row at a time.
+ *
+ * A reader holds no per-row state, so one instance may be shared by several
+ * threads, each passing its own row buffer.
+ *
+ * @author Tres Finocchiaro
+ */
+public class ImageRowReader {
+
+    private enum Layout { INT_ARGB, INT_RGB, BYTE_BGR, BYTE_ABGR, BYTE_LOOKUP, OTHER }
+
+    private final BufferedImage image;
+    private final int width;
+
+    private Layout layout = Layout.OTHER;
+    private int[] intData;
+    private byte[] byteData;
+    private int offset;
+    private int scanlineStride;
+    private int[] lookup;   // ARGB value of each byte sample, for gray and indexed images
+
+    public ImageRowReader(BufferedImage image) {
+        this.image = image;
+        this.width = image.getWidth();
+
+        WritableRaster raster = image.getRaster();
+        if (raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0) {
+            return; // sub-image, let getRGB deal with the translation
+        }
+
+        SampleModel sm = raster.getSampleModel();
+        DataBuffer db = raster.getDataBuffer();
+        switch(image.getType()) {
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_RGB:
+                if (db instanceof DataBufferInt && sm instanceof SinglePixelPackedSampleModel) {
+                    intData = ((DataBufferInt)db).getData();
+                    offset = db.getOffset();
+                    scanlineStride = ((SinglePixelPackedSampleModel)sm).getScanlineStride();
+                    layout = image.getType() == BufferedImage.TYPE_INT_ARGB? Layout.INT_ARGB:Layout.INT_RGB;
+                }
+                break;
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_BYTE_GRAY:
+            case BufferedImage.TYPE_BYTE_INDEXED:
+                if (db instanceof DataBufferByte && sm instanceof ComponentSampleModel) {
+                    byteData = ((DataBufferByte)db).getData();
+                    offset = db.getOffset();
+                    scanlineStride = ((ComponentSampleModel)sm).getScanlineStride();
+                    if (image.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+                        layout = Layout.BYTE_BGR;
+                    } else if (image.getType() == BufferedImage.TYPE_4BYTE_ABGR) {
+                        layout = Layout.BYTE_ABGR;
+                    } else {
+                        // Resolve each of the 256 possible samples through the color model once
+                        ColorModel cm = image.getColorModel();
+                        lookup = new int[256];
+                        byte[] sample = new byte[1];
+                        for(int i = 0; i < lookup.length; i++) {
+                            sample[0] = (byte)i;
+                            lookup[i] = cm.getRGB(sample);
+                        }
+                        layout = Layout.BYTE_LOOKUP;
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    /**
+     * Reads row <code>y</code> of the image into <code>row</code>
+     *
+     * @param y the row to read
+     * @param row destination, at least <code>getWidth()</code> long
+     */
+    public void read(int y, int[] row) {
+        int pos = offset + y * scanlineStride;
+        switch(layout) {
+            case INT_ARGB:
+                System.arraycopy(intData, pos, row, 0, width);
+                break;
+            case INT_RGB:
+                for(int x = 0; x < width; x++) {
+                    row[x] = 0xFF000000 | intData[pos + x];
+                }
+                break;
+            case BYTE_BGR:
+                for(int x = 0; x < width; x++, pos += 3) {
+                    row[x] = 0xFF000000 | (byteData[pos + 2] & 0xFF) << 16 | (byteData[pos + 1] & 0xFF) << 8 | (byteData[pos] & 0xFF);
+                }
+                break;
+            case BYTE_ABGR:
+                for(int x = 0; x < width; x++, pos += 4) {
+                    row[x] = (byteData[pos] & 0xFF) << 24 | (byteData[pos + 3] & 0xFF) << 16 | (byteData[pos + 2] & 0xFF) << 8 | (byteData[pos + 1] & 0xFF);
+                }
+                break;
+            case BYTE_LOOKUP:
+                for(int x = 0; x < width; x++) {
+                    row[x] = lookup[byteData[pos + x] & 0xFF];
+                }
+                break;
+            case OTHER:
+            default:
+                image.getRGB(0, y, width, 1, row, 0, width);
+        }
+    }
+}
@@ -23,14 +23,31 @@
  */
 package qz.printer;
 
+import qz.common.Base64;
 import qz.common.ByteArrayBuilder;
+import qz.common.Constants;
 import qz.exception.InvalidRawImageException;
-import qz.utils.ByteUtilities;
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -76,18 +93,95 @@ public class ImageWrapper {
      * discarded.
      */
     public static final int CHECK_ALPHA = 2;
+    /**
+     * Represents the DITHER_FLOYD_STEINBERG quantization method, the luma of
+     * each pixel is compared to the luma threshold and the difference is
+     * spread over the neighbouring pixels, giving shades of grey for photos
+     * and greyscale logos.  Transparent pixels are treated as white paper.
+     */
+    public static final int DITHER_FLOYD_STEINBERG = 3;
+    /**
+     * Represents the DITHER_BAYER quantization method, the luma of each pixel
+     * is compared to a threshold varying over an 8x8 pattern centered on the
+     * luma threshold.  Gives a regular cross-hatched look for shades of grey.
+     * Transparent pixels are treated as white paper.
+     */
+    public static final int DITHER_BAYER = 4;
+
+    /**
+     * Represents the ENCODE_HEX graphic encoding, each byte of the image is
+     * sent as two hexadecimal characters.
+     */
+    public static final int ENCODE_HEX = 0;
+    /**
+     * Represents the ENCODE_ACS graphic encoding (ZPL only), the hexadecimal
+     * data is run-length compressed with ZPL's ASCII compression scheme, using
+     * repeat counts and the <code>,</code> <code>!</code> and <code>:</code>
+     * row shortcuts.
+     */
+    public static final int ENCODE_ACS = 1;
+    /**
+     * Represents the ENCODE_Z64 graphic encoding (ZPL only), the image is
+     * deflated and sent base64 encoded with a CRC as <code>:Z64:data:crc</code>.
+     * Requires a recent printer firmware.
+     */
+    public static final int ENCODE_Z64 = 2;
+    /**
+     * Represents the ENCODE_RASTER graphic encoding (ESC/P only), the image
+     * is sent with the ESC/POS <code>GS v 0</code> raster command instead of
+     * <code>ESC *</code> bit image stripes.  Denser, and supported by most
+     * modern receipt printers.
+     */
+    public static final int ENCODE_RASTER = 3;
+
+    // Maximum number of rows sent in a single GS v 0 command
+    private static final int RASTER_BAND_ROWS = 1024;
+
+    // 8x8 Bayer index matrix, values 0 to 63
+    private static final int[][] BAYER_MATRIX = {
+            { 0, 32,  8, 40,  2, 34, 10, 42},
+            {48, 16, 56, 24, 50, 18, 58, 26},
+            {12, 44,  4, 36, 14, 46,  6, 38},
+            {60, 28, 52, 20, 62, 30, 54, 22},
+            { 3, 35, 11, 43,  1, 33,  9, 41},
+            {51, 19, 59, 27, 49, 17, 57, 25},
+            {15, 47,  7, 39, 13, 45,  5, 37},
+            {63, 31, 55, 23, 61, 29, 53, 21}
+    };
     
+    /**
+     * Images with at least this many pixels are converted in parallel row
+     * bands.  Can be overridden with the <code>imageParallelThreshold</code>
+     * system property or per image with <code>setParallelThreshold</code>
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = Integer.getInteger("imageParallelThreshold", 1000000);
+
+    /**
+     * Images larger than this many pixels are decoded from an
+     * <code>ImageReader</code> in row bands of about this size instead of all
+     * at once.  Can be overridden with the <code>imageStreamBandPixels</code>
+     * system property
+     */
+    public static final int STREAM_BAND_PIXELS = Integer.getInteger("imageStreamBandPixels", 1048576);
+
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService bandExecutor;
+
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
     private int lumaThreshold = 127;
-    private boolean[] imageAsBooleanArray;        //Image representation as an array of boolean, with true values representing imageAsBooleanArray dots
-    private int[] imageAsIntArray;                //Image representation as an array of ints, with each bit representing a imageAsBooleanArray dot
+    private byte[] imageAsByteArray;              //Image representation packed 8 dots per byte, each row padded to a full byte
     private ByteArrayBuilder byteBuffer = new ByteArrayBuilder();
     private int alphaThreshold = 127;
     private BufferedImage bufferedImage;
+    private ImageReader imageReader;              //Set instead of bufferedImage when decoding in bands
+    private int width;
+    private int height;
     private LanguageType languageType;
     private Charset charset = Charset.defaultCharset();
     private int imageQuantizationMethod = CHECK_LUMA;
     private int xPos = 0;   // X coordinate used for EPL2, CPCL.  Irrelevant for ZPLII, ESC/P, etc
     private int yPos = 0;   // Y coordinate used for EPL2, CPCL.  Irrelevant for ZPLII, ESC/P, etc
+    private int imageEncoding = ENCODE_HEX;
     private int dotDensity = 32;  // Generally 32 = Single (normal) 33 = Double (higher res) for ESCP.  Irrelevant for all other languages.
 
     /**
@@ -98,7 +192,7 @@ public class ImageWrapper {
      * @param bufferedImage The image to convert for thermal printing
      */
     public ImageWrapper(BufferedImage bufferedImage, LanguageType languageType) {
-        this.bufferedImage = bufferedImage;
+        setBufferedImage(bufferedImage);
         this.languageType = languageType;
         log.info("Loading BufferedImage");
         log.info(
@@ -110,6 +204,92 @@ public class ImageWrapper {
         }
     }
 
+    /**
+     * Creates a new
+     * <code>ImageWrapper</code> from an
+     * <code>ImageReader</code>.  The image is decoded in row bands during the
+     * conversion, so only one band is ever held as a
+     * <code>BufferedImage</code>.
+     *
+     * @param imageReader Reader with its input already set, see <code>getStreamingReader</code>
+     * @throws IOException if the image dimensions cannot be read
+     */
+    public ImageWrapper(ImageReader imageReader, LanguageType languageType) throws IOException {
+        this.imageReader = imageReader;
+        try {
+            this.width = imageReader.getWidth(0);
+            this.height = imageReader.getHeight(0);
+        } catch (IOException e) {
+            dispose();
+            throw e;
+        }
+        this.languageType = languageType;
+        log.info("Loading image in bands with " + imageReader.getFormatName());
+        log.info("Dimensions: " + width + "x" + height);
+        init();
+
+        if (languageType.requiresImageWidthValidated()) {
+            validateImageWidth();
+        }
+    }
+
+    /**
+     * Returns a reader for <code>imageData</code> if the image is large enough
+     * to be worth decoding in bands.
+     *
+     * @param imageData the encoded image, PNG, JPG, GIF, BMP, etc
+     * @return the reader with its input set, or <code>null</code> if the image
+     * is small or its format cannot be read in bands
+     * @throws IOException if the image header cannot be read
+     */
+    public static ImageReader getStreamingReader(byte[] imageData) throws IOException {
+        ImageInputStream in = new MemoryCacheImageInputStream(new ByteArrayInputStream(imageData));
+        ImageReader reader = null;
+        boolean streaming = false;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+
+            reader = readers.next();
+            reader.setInput(in, true, true);
+            streaming = (long)reader.getWidth(0) * reader.getHeight(0) > STREAM_BAND_PIXELS;
+            return streaming? reader:null;
+        } finally {
+            if (!streaming) {
+                if (reader != null) {
+                    reader.dispose();
+                }
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * Releases the <code>ImageReader</code> this image was created from, and
+     * closes its input, i.e. native JPEG decoder state.  Must be called once
+     * the commands are no longer needed, the image cannot be converted again
+     * afterwards.  Does nothing for images created from a
+     * <code>BufferedImage</code>.
+     */
+    public void dispose() {
+        if (imageReader == null) {
+            return;
+        }
+
+        Object input = imageReader.getInput();
+        imageReader.dispose();
+        imageReader = null;
+        if (input instanceof ImageInputStream) {
+            try {
+                ((ImageInputStream)input).close();
+            } catch (IOException e) {
+                log.log(Level.WARNING, "Cannot close image stream", e);
+            }
+        }
+    }
+
     /**
      * Returns the luma threshold used for the CHECK_LUMA quantization method.
      * Pixels that are more transparent than this, or that have a luma greater
@@ -132,6 +312,7 @@ public class ImageWrapper {
      */
     public void setLumaThreshold(int lumaThreshold) {
         this.lumaThreshold = lumaThreshold;
+        init();
     }
 
     /**
@@ -144,7 +325,10 @@ public class ImageWrapper {
      * <code>setLumaThreshold</code> <li><code>CHECK_ALPHA</code>: Pixels are
      * considered black if and only if their opacity (alpha) is over a
      * threshold,. This threshold is set with
-     * <code>setAlphaThreshold</code> </ul>
+     * <code>setAlphaThreshold</code> <li><code>DITHER_FLOYD_STEINBERG</code>:
+     * Error diffusion dithering around the luma threshold
+     * <li><code>DITHER_BAYER</code>: Ordered dithering around the luma
+     * threshold </ul>
      *
      * Default quantization method is
      * <code>CHECK_BLACK</code>.
@@ -165,7 +349,10 @@ public class ImageWrapper {
      * <code>setLumaThreshold</code> <li><code>CHECK_ALPHA</code>: Pixels are
      * considered black if and only if their opacity (alpha) is over a
      * threshold,. This threshold is set with
-     * <code>setAlphaThreshold</code> </ul>
+     * <code>setAlphaThreshold</code> <li><code>DITHER_FLOYD_STEINBERG</code>:
+     * Error diffusion dithering around the luma threshold
+     * <li><code>DITHER_BAYER</code>: Ordered dithering around the luma
+     * threshold </ul>
      *
      * Default (and fallback) quantization method is
      * <code>CHECK_BLACK</code>.
@@ -174,6 +361,29 @@ public class ImageWrapper {
      */
     public void setImageQuantizationMethod(int imageQuantizationMethod) {
         this.imageQuantizationMethod = imageQuantizationMethod;
+        init();
+    }
+
+    /**
+     * Returns the quantization method matching <code>name</code>, i.e.
+     * "black", "luma", "alpha", "dither" (Floyd-Steinberg) or "bayer"
+     *
+     * @param name name of the quantization method, case insensitive
+     * @return the quantization method, or -1 if not recognized
+     */
+    public static int getImageQuantizationMethod(String name) {
+        if (name.equalsIgnoreCase("black")) {
+            return CHECK_BLACK;
+        } else if (name.equalsIgnoreCase("luma")) {
+            return CHECK_LUMA;
+        } else if (name.equalsIgnoreCase("alpha")) {
+            return CHECK_ALPHA;
+        } else if (name.equalsIgnoreCase("dither") || name.equalsIgnoreCase("floyd-steinberg")) {
+            return DITHER_FLOYD_STEINBERG;
+        } else if (name.equalsIgnoreCase("bayer") || name.equalsIgnoreCase("ordered")) {
+            return DITHER_BAYER;
+        }
+        return -1;
     }
 
     /**
@@ -198,8 +408,71 @@ public class ImageWrapper {
      */
     public void setAlphaThreshold(int alphaThreshold) {
         this.alphaThreshold = alphaThreshold;
+        init();
     }
     
+    /**
+     * Returns the minimum number of pixels for an image to be converted in
+     * parallel row bands
+     *
+     * @return the current threshold
+     */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * Sets the minimum number of pixels for an image to be converted in
+     * parallel row bands.  The output is identical either way.
+     *
+     * @param parallelThreshold the threshold to set, <code>Integer.MAX_VALUE</code> to always convert serially
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Returns the encoding used for the graphic data of ZPL images, one of
+     * <code>ENCODE_HEX</code> (default), <code>ENCODE_ACS</code> or
+     * <code>ENCODE_Z64</code>, or <code>ENCODE_RASTER</code> for ESC/P images.
+     * Encodings not applying to the language are ignored.
+     *
+     * @return the current encoding
+     */
+    public int getImageEncoding() {
+        return imageEncoding;
+    }
+
+    /**
+     * Sets the encoding used for the graphic data of ZPL images, see
+     * <code>getImageEncoding</code>
+     *
+     * @param imageEncoding the encoding to set
+     */
+    public void setImageEncoding(int imageEncoding) {
+        this.imageEncoding = imageEncoding;
+    }
+
+    /**
+     * Returns the graphic encoding matching <code>name</code>, i.e. "hex",
+     * "compressed" (ZPL ASCII compression), "z64" or "raster" (ESC/POS)
+     *
+     * @param name name of the encoding, case insensitive
+     * @return the encoding, or -1 if not recognized
+     */
+    public static int getImageEncoding(String name) {
+        if (name.equalsIgnoreCase("hex")) {
+            return ENCODE_HEX;
+        } else if (name.equalsIgnoreCase("compressed") || name.equalsIgnoreCase("acs")) {
+            return ENCODE_ACS;
+        } else if (name.equalsIgnoreCase("z64")) {
+            return ENCODE_Z64;
+        } else if (name.equalsIgnoreCase("raster")) {
+            return ENCODE_RASTER;
+        }
+        return -1;
+    }
+
     public int getDotDensity() {
         return dotDensity;
     }
@@ -230,46 +503,69 @@ public class ImageWrapper {
      * setQuantizationMethod. Should an invalied value be set as the
      * quantization method, CHECK_BLACK will be used
      *
-     * @param rgbPixel the color of the pixel as defined in getRGB()
+     * @param argb the color of the pixel as defined in getRGB()
+     * @param x column of the pixel, used for ordered dithering
+     * @param y row of the pixel, used for ordered dithering
      * @return true if the pixel should be black, false otherwise
      */
-    private boolean isBlack(int rgbPixel) {
-        Color color = new Color(rgbPixel, true);
-
-        int r = color.getRed();
-        int g = color.getGreen();
-        int b = color.getBlue();
-        int a = color.getAlpha();
+    private boolean isBlack(int argb, int x, int y) {
+        int a = argb >>> 24;
         switch (getImageQuantizationMethod()) {
             case CHECK_LUMA:
                 if (a < getLumaThreshold()) {
                     return false;     // assume pixels that are less opaque than the luma threshold should be considered to be white
                 }
+                int r = (argb >> 16) & 0xFF;
+                int g = (argb >> 8) & 0xFF;
+                int b = argb & 0xFF;
                 int luma = ((r * 299) + (g * 587) + (b * 114)) / 1000;      //luma formula
                 return luma < getLumaThreshold();                   //pixels that have less luma than the threshold are black
             case CHECK_ALPHA:
                 return a > getAlphaThreshold();         //pixels that are more opaque than the threshold are black
+            case DITHER_BAYER:
+                // thresholds spread evenly from 0 to twice the luma threshold
+                return getLuma(argb) * 128 < (2 * BAYER_MATRIX[y & 7][x & 7] + 1) * 2 * getLumaThreshold();
             case CHECK_BLACK:
                 //only fully black pizels are black
             default:
-                return color.equals(Color.BLACK);              //The default
-
+                return argb == 0xFF000000;              //The default, opaque black
         }
     }
 
     /**
-     * Sets ImageAsBooleanArray. boolean is used instead of int for memory
-     * considerations.
+     * Returns the luma of a pixel as printed on white paper, transparent
+     * pixels being as light as their transparency
      *
+     * @param argb the color of the pixel as defined in getRGB()
+     * @return luma from 0 (black) to 255 (white)
      */
-    private void generateBlackPixels() {
+    private static int getLuma(int argb) {
+        int a = argb >>> 24;
+        int r = (argb >> 16) & 0xFF;
+        int g = (argb >> 8) & 0xFF;
+        int b = argb & 0xFF;
+        int luma = ((r * 299) + (g * 587) + (b * 114)) / 1000;
+        return (luma * a + 255 * (255 - a)) / 255;
+    }
+
+    /**
+     * Returns the number of bytes per row of the packed image
+     */
+    private int getBytesPerRow() {
+        return (getWidth() + 7) / 8;
+    }
+
+    /**
+     * Sets imageAsByteArray, reading the image one row at a time and packing
+     * the dots straight into bytes.  Large images are converted in row bands
+     * on several threads.  Images from an <code>ImageReader</code> are
+     * decoded one band of <code>STREAM_BAND_PIXELS</code> at a time, each band
+     * being packed before the next is read.
+     *
+     */
+    private void generateBlackPixels() throws IOException {
         log.info("Converting image to monochrome");
-        BufferedImage bi = bufferedImage;
-        int h = bi.getHeight();
-        int w = bi.getWidth();
-        int[] rgbPixels = bi.getRGB(0, 0, w, h, null, 0, w);
-        int i = 0;
-        boolean[] pixels = new boolean[rgbPixels.length];
+        byte[] packed = new byte[getBytesPerRow() * getHeight()];
        /*
         * It makes most sense to have black pixels as 1's and white pixels
         * as zero's, however some printer manufacturers had this reversed
@@ -277,38 +573,454 @@ public class ImageWrapper {
         * uses 0's for black pixels.
         * See also: https://support.zebra.com/cpws/docs/eltron/gw_command.htm
         */
-        for (int rgbpixel : rgbPixels) {
-            pixels[i++] = languageType.requiresImageOutputInverted() ? !isBlack(rgbpixel) : 
-                    isBlack(rgbpixel);
+        boolean inverted = languageType.requiresImageOutputInverted();
+
+        // Each row depends on the error left by the previous one, so this is carried across bands
+        int[][] errors = null;
+        if (getImageQuantizationMethod() == DITHER_FLOYD_STEINBERG) {
+            errors = new int[2][getWidth() + 2];
+        }
+
+        if (imageReader == null) {
+            convertRows(new ImageRowReader(bufferedImage), 0, getHeight(), packed, inverted, errors);
+        } else {
+            int sourceWidth = imageReader.getWidth(0);
+            int bandRows = Math.max(1, STREAM_BAND_PIXELS / sourceWidth);
+            ImageReadParam param = imageReader.getDefaultReadParam();
+            for (int y = 0; y < getHeight(); y += bandRows) {
+                int rows = Math.min(bandRows, getHeight() - y);
+                param.setSourceRegion(new Rectangle(0, y, sourceWidth, rows));
+                BufferedImage band = padImage(imageReader.read(0, param));
+                convertRows(new ImageRowReader(band), y, rows, packed, inverted, errors);
+            }
+        }
+        setImageAsByteArray(packed);
+    }
+
+    /**
+     * Packs <code>rows</code> rows read from <code>reader</code> into
+     * <code>packed</code>, starting at image row <code>firstRow</code>.
+     *
+     * @param errors Floyd-Steinberg errors for the current and next row, or
+     * <code>null</code> for the other quantization methods
+     */
+    private void convertRows(final ImageRowReader reader, final int firstRow, int rows, final byte[] packed,
+                             final boolean inverted, int[][] errors) {
+        final int w = getWidth();
+        final int bytesPerRow = getBytesPerRow();
+
+        if (errors != null) {
+            generateDiffusedPixels(reader, firstRow, rows, packed, inverted, errors);
+            return;
+        }
+
+        runBands(firstRow, firstRow + rows, new Band() {
+            public void run(int startRow, int endRow) {
+                int[] row = new int[w];
+                for (int y = startRow; y < endRow; y++) {
+                    reader.read(y - firstRow, row);
+                    int pos = y * bytesPerRow;
+                    for (int x = 0; x < w; x++) {
+                        if (isBlack(row[x], x, y) != inverted) {
+                            packed[pos + (x >> 3)] |= 0x80 >>> (x & 7);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Floyd-Steinberg error diffusion.  Only the error carried into the
+     * current and the next row is kept, so memory stays proportional to the
+     * image width.
+     */
+    private void generateDiffusedPixels(ImageRowReader reader, int firstRow, int rows, byte[] packed,
+                                        boolean inverted, int[][] errors) {
+        int w = getWidth();
+        int bytesPerRow = getBytesPerRow();
+        int threshold = getLumaThreshold();
+        int[] row = new int[w];
+        // errors are in 16ths, offset by one so the neighbours of the edge pixels need no bounds checks
+        int[] current = errors[0];
+        int[] next = errors[1];
+
+        for (int y = firstRow; y < firstRow + rows; y++) {
+            reader.read(y - firstRow, row);
+            int pos = y * bytesPerRow;
+            for (int x = 0; x < w; x++) {
+                int value = getLuma(row[x]) + current[x + 1] / 16;
+                boolean black = value < threshold;
+                int error = black? value:value - 255;
+
+                current[x + 2] += error * 7;
+                next[x] += error * 3;
+                next[x + 1] += error * 5;
+                next[x + 2] += error;
+
+                if (black != inverted) {
+                    packed[pos + (x >> 3)] |= 0x80 >>> (x & 7);
+                }
+            }
+
+            int[] swap = current;
+            current = next;
+            next = swap;
+            Arrays.fill(next, 0);
+        }
+        errors[0] = current;
+        errors[1] = next;
+    }
+
+    /**
+     * Hex encodes the packed image, in row bands like the conversion itself
+     *
+     * @return the packed image as upper case hex
+     */
+    private String getImageAsHexString() {
+        final byte[] bytes = getImageAsByteArray();
+        final int bytesPerRow = getBytesPerRow();
+        final char[] hex = new char[bytes.length * 2];
+
+        runBands(0, getHeight(), new Band() {
+            public void run(int startRow, int endRow) {
+                for (int i = startRow * bytesPerRow; i < endRow * bytesPerRow; i++) {
+                    int v = bytes[i] & 0xFF;
+                    hex[i * 2] = Constants.HEXES_ARRAY[v >>> 4];
+                    hex[i * 2 + 1] = Constants.HEXES_ARRAY[v & 0x0F];
+                }
+            }
+        });
+        return new String(hex);
+    }
+
+    /**
+     * Returns whether <code>languageType</code> can store graphics in printer
+     * memory with <code>getStoreCommand</code>
+     *
+     * @param languageType language of the printer
+     * @return true for ZPL and EPL
+     */
+    public static boolean supportsStoredGraphics(LanguageType languageType) {
+        switch (languageType) {
+            case ZPL:
+            case ZPLII:
+            case EPL:
+            case EPL2:
+                return true;
+            default:
+                return false;
         }
-        setImageAsBooleanArray(pixels);
     }
 
     /**
-     * Converts the internal representation of the image into an array of bytes,
-     * suitable to be sent to a raw printer.
+     * Returns a printer memory name for a graphic, 8 characters or less as
+     * required by ZPL and EPL
+     *
+     * @param key anything uniquely identifying the graphic, i.e. an <code>ImageCache</code> key
+     * @return the name of the graphic
+     */
+    public static String getGraphicName(String key) {
+        return "Q" + ImageCache.getKey(key.getBytes()).substring(0, 7);
+    }
+
+    /**
+     * Generates the commands downloading the image into printer memory as
+     * <code>name</code>, ZPL <code>~DG</code> or EPL <code>GK</code> and
+     * <code>GM</code>.  The image is not printed, see
+     * <code>getRecallCommand</code>.
      *
-     * @return The raw bytes that compose the image
+     * @param name name of the graphic, from <code>getGraphicName</code>
+     * @return the commands as an array of bytes
      */
-    private byte[] getBytes() {
-        log.info("Generating byte array");
-        int[] ints = this.getImageAsIntArray();
-        byte[] bytes = new byte[ints.length];
-        for (int i = 0; i < ints.length; i++) {
-            bytes[i] = (byte) ints[i];
+    public byte[] getStoreCommand(String name) throws InvalidRawImageException, IOException {
+        convert();
+        ByteArrayBuilder builder = new ByteArrayBuilder();
+        switch (languageType) {
+            case ZPL:
+            case ZPLII:
+                // ~DG is an immediate command, the printer stores the graphic as soon as it arrives
+                int byteLen = getImageAsByteArray().length;
+                StringBuilder zpl = new StringBuilder("~DGR:").append(name).append(".GRF,")
+                        .append(byteLen).append(",")
+                        .append(getBytesPerRow()).append(",")
+                        .append(getZplGraphicData());
+                builder.append(zpl, charset);
+                break;
+            case EPL:
+            case EPL2:
+                // GM fails if the name is taken, so delete any previous graphic first
+                byte[] pcx = getPcxBytes();
+                StringBuilder epl = new StringBuilder("GK\"").append(name).append("\"\n")
+                        .append("GM\"").append(name).append("\"").append(pcx.length).append("\n");
+                builder.append(epl, charset).append(pcx);
+                break;
+            default:
+                throw new InvalidRawImageException(languageType + " image storage is not supported.");
+        }
+        return builder.getByteArray();
+    }
+
+    /**
+     * Generates the command printing a graphic previously stored with
+     * <code>getStoreCommand</code>, in place of the full image
+     *
+     * @param languageType language of the printer
+     * @param name name of the graphic
+     * @param xPos X coordinate, EPL only
+     * @param yPos Y coordinate, EPL only
+     * @param charset charset of the commands
+     * @return the command as an array of bytes
+     */
+    public static byte[] getRecallCommand(LanguageType languageType, String name, int xPos, int yPos, Charset charset)
+            throws InvalidRawImageException, UnsupportedEncodingException {
+        switch (languageType) {
+            case ZPL:
+            case ZPLII:
+                return ("^XGR:" + name + ".GRF,1,1").getBytes(charset.name());
+            case EPL:
+            case EPL2:
+                return ("GG" + xPos + "," + yPos + ",\"" + name + "\"\n").getBytes(charset.name());
+            default:
+                throw new InvalidRawImageException(languageType + " image storage is not supported.");
+        }
+    }
+
+    /**
+     * Encodes the packed image as a monochrome PCX file, the format EPL
+     * stores graphics in.  EPL images are already inverted, so set bits are
+     * white as PCX expects.
+     *
+     * @return the PCX file
+     */
+    private byte[] getPcxBytes() {
+        byte[] packed = getImageAsByteArray();
+        int w = getWidth();
+        int h = getHeight();
+        int bytesPerRow = getBytesPerRow();
+        int bytesPerLine = bytesPerRow + (bytesPerRow % 2);     // PCX lines have an even length
+
+        ByteArrayOutputStream pcx = new ByteArrayOutputStream(128 + packed.length);
+        byte[] header = new byte[128];
+        header[0] = 0x0A;   // manufacturer
+        header[1] = 5;      // version 3.0
+        header[2] = 1;      // run-length encoded
+        header[3] = 1;      // bits per pixel
+        putShort(header, 8, w - 1);
+        putShort(header, 10, h - 1);
+        putShort(header, 12, 203);
+        putShort(header, 14, 203);
+        // palette entry 0 is black, entry 1 white
+        header[19] = header[20] = header[21] = (byte)0xFF;
+        header[65] = 1;     // planes
+        putShort(header, 66, bytesPerLine);
+        putShort(header, 68, 1);
+        pcx.write(header, 0, header.length);
+
+        for (int y = 0; y < h; y++) {
+            int pos = y * bytesPerRow;
+            int x = 0;
+            while (x < bytesPerLine) {
+                byte v = x < bytesPerRow? packed[pos + x]:(byte)0xFF;
+                int run = 1;
+                while (run < 63 && x + run < bytesPerLine
+                        && (x + run < bytesPerRow? packed[pos + x + run]:(byte)0xFF) == v) {
+                    run++;
+                }
+                if (run > 1 || (v & 0xC0) == 0xC0) {
+                    pcx.write(0xC0 | run);
+                }
+                pcx.write(v);
+                x += run;
+            }
         }
-        return bytes;
+        return pcx.toByteArray();
+    }
+
+    private static void putShort(byte[] bytes, int pos, int value) {
+        bytes[pos] = (byte)(value & 0xFF);
+        bytes[pos + 1] = (byte)((value >> 8) & 0xFF);
+    }
+
+    /**
+     * Returns the graphic data of a ZPL <code>^GF</code> or <code>~DG</code>
+     * command in the selected encoding
+     */
+    private String getZplGraphicData() {
+        switch (getImageEncoding()) {
+            case ENCODE_ACS:
+                return getAcsCompressedString();
+            case ENCODE_Z64:
+                return getZ64String();
+            case ENCODE_HEX:
+            default:
+                return getImageAsHexString();
+        }
+    }
+
+    /**
+     * Compresses the hex data with ZPL's ASCII compression scheme.  Rows equal
+     * to the previous one become <code>:</code>, a row ending in zeros or ones
+     * is cut short with <code>,</code> or <code>!</code> and any other run of
+     * a repeated character is prefixed with its repeat count.
+     *
+     * @return the compressed hex data
+     */
+    private String getAcsCompressedString() {
+        String hex = getImageAsHexString();
+        int rowLength = getBytesPerRow() * 2;
+        StringBuilder acs = new StringBuilder(hex.length() / 4);
+
+        for (int start = 0; start < hex.length(); start += rowLength) {
+            int end = start + rowLength;
+            if (start > 0 && hex.regionMatches(start, hex, start - rowLength, rowLength)) {
+                acs.append(':');
+                continue;
+            }
+
+            int i = start;
+            while (i < end) {
+                char c = hex.charAt(i);
+                int run = 1;
+                while (i + run < end && hex.charAt(i + run) == c) {
+                    run++;
+                }
+                if (i + run == end && c == '0') {
+                    acs.append(',');
+                } else if (i + run == end && c == 'F') {
+                    acs.append('!');
+                } else {
+                    appendRepeatCount(acs, run);
+                    acs.append(c);
+                }
+                i += run;
+            }
+        }
+        return acs.toString();
+    }
+
+    /**
+     * Appends the ZPL repeat count for <code>count</code> characters, the
+     * letters <code>G</code> to <code>Y</code> counting 1 to 19 and
+     * <code>g</code> to <code>z</code> counting 20 to 400, added together
+     */
+    private static void appendRepeatCount(StringBuilder acs, int count) {
+        if (count < 2) {
+            return;
+        }
+        for (; count >= 400; count -= 400) {
+            acs.append('z');
+        }
+        if (count >= 20) {
+            acs.append((char)('f' + count / 20));
+        }
+        if (count % 20 > 0) {
+            acs.append((char)('F' + count % 20));
+        }
+    }
+
+    /**
+     * Deflates the packed image and encodes it as <code>:Z64:data:crc</code>,
+     * the CRC being the CRC-16 (CCITT) of the base64 data
+     *
+     * @return the Z64 encoded data
+     */
+    private String getZ64String() {
+        byte[] bytes = getImageAsByteArray();
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(bytes);
+        deflater.finish();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        byte[] buffer = new byte[Constants.BYTE_BUFFER_SIZE];
+        while (!deflater.finished()) {
+            int len = deflater.deflate(buffer);
+            compressed.write(buffer, 0, len);
+        }
+        deflater.end();
+
+        String base64 = Base64.encodeBytes(compressed.toByteArray());
+        return ":Z64:" + base64 + ":" + String.format("%04x", getCrc16(base64));
     }
 
-    private void generateIntArray() {
-        log.info("Packing bits");
-        imageAsIntArray = new int[imageAsBooleanArray.length / 8];
-        // Convert every eight zero's to a full byte, in decimal
-        for (int i = 0; i < imageAsIntArray.length; i++) {
+    /**
+     * CRC-16 CCITT (polynomial 0x1021, initial value 0) of an ASCII string
+     */
+    private static int getCrc16(String ascii) {
+        int crc = 0;
+        for (int i = 0; i < ascii.length(); i++) {
+            crc ^= (ascii.charAt(i) & 0xFF) << 8;
             for (int k = 0; k < 8; k++) {
-                imageAsIntArray[i] += (imageAsBooleanArray[8 * i + k] ? 1 : 0) << 7 - k;
+                crc = (crc & 0x8000) != 0? (crc << 1) ^ 0x1021:crc << 1;
             }
+            crc &= 0xFFFF;
         }
+        return crc;
+    }
+
+    /**
+     * Work done on a range of image rows, bands never overlap
+     */
+    private interface Band {
+        void run(int startRow, int endRow);
+    }
+
+    /**
+     * Runs <code>band</code> over rows <code>firstRow</code> to
+     * <code>endRow</code> of the image.  Ranges smaller than the parallel
+     * threshold run on the calling thread, larger ones are split into one band
+     * per processor, the calling thread taking the last band.
+     */
+    private void runBands(int firstRow, int endRow, Band band) {
+        int h = endRow - firstRow;
+        int bands = Math.min(PARALLELISM, h);
+        if (bands < 2 || (long)getWidth() * h < parallelThreshold) {
+            band.run(firstRow, endRow);
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(bands - 1);
+        int rowsPerBand = (h + bands - 1) / bands;
+        int start = firstRow;
+        for (; start + rowsPerBand < endRow; start += rowsPerBand) {
+            final Band b = band;
+            final int bandStart = start;
+            final int bandEnd = start + rowsPerBand;
+            futures.add(getBandExecutor().submit(new Runnable() {
+                public void run() {
+                    b.run(bandStart, bandEnd);
+                }
+            }));
+        }
+        band.run(start, endRow);
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while converting image", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static synchronized ExecutorService getBandExecutor() {
+        if (bandExecutor == null) {
+            bandExecutor = Executors.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ImageWrapper-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return bandExecutor;
     }
 
     /**
@@ -318,22 +1030,27 @@ public class ImageWrapper {
      * @return The commands to print the image as an array of bytes, ready to be
      * sent to the printer
      */
-    public byte[] getImageCommand() throws InvalidRawImageException, UnsupportedEncodingException {
+    public byte[] getImageCommand() throws InvalidRawImageException, IOException {
+        convert();
         this.getByteBuffer().clear();
         
         switch (languageType) {
             case ESCP:
             case ESCP2:
-                appendEpsonSlices(this.getByteBuffer());
+                if (getImageEncoding() == ENCODE_RASTER) {
+                    appendEpsonRaster(this.getByteBuffer());
+                } else {
+                    appendEpsonSlices(this.getByteBuffer());
+                }
                 break;
             case ZPL:
             case ZPLII:
-                String zplHexAsString = ByteUtilities.getHexString(getImageAsIntArray());
-                int byteLen = zplHexAsString.length() / 2;
-                int perRow = byteLen / getHeight();
+                // Both counts are of the uncompressed data, whatever the encoding
+                int byteLen = getImageAsByteArray().length;
+                int perRow = getBytesPerRow();
                 StringBuilder zpl = new StringBuilder("^GFA,")
                         .append(byteLen).append(",").append(byteLen).append(",")
-                        .append(perRow).append(",").append(zplHexAsString);
+                        .append(perRow).append(",").append(getZplGraphicData());
                 
                 this.getByteBuffer().append(zpl, charset);
                 break;
@@ -345,10 +1062,10 @@ public class ImageWrapper {
                         .append(getWidth()/8).append(",")
                         .append(getHeight()).append(",");
                 
-                this.getByteBuffer().append(epl, charset).append(getBytes());
+                this.getByteBuffer().append(epl, charset).append(getImageAsByteArray());
                 break;
             case CPCL:
-                String cpclHexAsString = ByteUtilities.getHexString(getImageAsIntArray());
+                String cpclHexAsString = getImageAsHexString();
                 StringBuilder cpcl = new StringBuilder("EG ")
                         .append(getWidth()/8).append(" ")
                         .append(getHeight()).append(" ")
@@ -365,45 +1082,72 @@ public class ImageWrapper {
     }
 
     /**
-     * @return the width of the image
+     * Generates the commands printing the image on a label of its own, i.e.
+     * one page of a PDF.  ESC/P has no labels, the image is printed as is.
+     *
+     * @param dotsPerInch Density the image was rasterized at, used for the
+     * resolution of CPCL labels
+     * @return The commands to print the label as an array of bytes
      */
-    public int getWidth() {
-        return this.bufferedImage.getWidth();
+    public byte[] getLabelCommand(int dotsPerInch) throws InvalidRawImageException, IOException {
+        byte[] image = getImageCommand();
+        ByteArrayBuilder label = new ByteArrayBuilder();
+        switch (languageType) {
+            case ZPL:
+            case ZPLII:
+                label.append("^XA^FO" + getxPos() + "," + getyPos(), charset)
+                        .append(image).append("^FS^XZ\n", charset);
+                break;
+            case EPL:
+            case EPL2:
+                label.append("N\n", charset).append(image).append("\nP1\n", charset);
+                break;
+            case CPCL:
+                label.append("! 0 " + dotsPerInch + " " + dotsPerInch + " " + (getyPos() + getHeight()) + " 1\r\n", charset)
+                        .append(image).append("\r\nPRINT\r\n", charset);
+                break;
+            default:
+                label.append(image);
+        }
+        return label.getByteArray();
     }
 
     /**
-     * @return the height of the image
+     * @return the width of the image
      */
-    public int getHeight() {
-        return this.bufferedImage.getHeight();
+    public int getWidth() {
+        return width;
     }
 
     /**
-     * @return the image as an array of booleans
+     * @return the height of the image
      */
-    private boolean[] getImageAsBooleanArray() {
-        return imageAsBooleanArray;
+    public int getHeight() {
+        return height;
     }
 
     /**
-     * @param imageAsBooleanArray the imageAsBooleanArray to set
+     * Converts the image if it hasn't been converted since the last
+     * <code>init()</code>
      */
-    private void setImageAsBooleanArray(boolean[] imageAsBooleanArray) {
-        this.imageAsBooleanArray = imageAsBooleanArray;
+    private void convert() throws IOException {
+        if (imageAsByteArray == null) {
+            generateBlackPixels();
+        }
     }
 
     /**
-     * @return the imageAsIntArray
+     * @return the image packed 8 dots per byte, <code>convert()</code> must have been called first
      */
-    private int[] getImageAsIntArray() {
-        return imageAsIntArray;
+    private byte[] getImageAsByteArray() {
+        return imageAsByteArray;
     }
 
     /**
-     * @param imageAsIntArray the imageAsIntArray to set
+     * @param imageAsByteArray the imageAsByteArray to set
      */
-    private void setImageAsIntArray(int[] imageAsIntArray) {
-        this.imageAsIntArray = imageAsIntArray;
+    private void setImageAsByteArray(byte[] imageAsByteArray) {
+        this.imageAsByteArray = imageAsByteArray;
     }
 
     /**
@@ -412,11 +1156,13 @@ public class ImageWrapper {
      * constructor, but if for any reason you change the image contents (for
      * example, if you resize the image), it must be initialized again prior to
      * calling getImageCommand()
+     *
+     * The conversion itself is deferred until the image is first needed, so
+     * the quantization settings may still be changed after construction.
      */
     private void init() {
         log.info("Initializing Image Fields");
-        generateBlackPixels();
-        generateIntArray();
+        setImageAsByteArray(null);
     }
 
     public Charset getCharset() {
@@ -446,131 +1192,128 @@ public class ImageWrapper {
      */
     private void setBufferedImage(BufferedImage buffer) {
         this.bufferedImage = buffer;
+        this.width = buffer.getWidth();
+        this.height = buffer.getHeight();
     }
     
     /**
      * http://android-essential-devtopics.blogspot.com/2013/02/sending-bit-image-to-epson-printer.html
+     *
+     * The printer wants the dots arranged in columns of 24 dots, three bytes
+     * stacked on top of each other, sent one 24 dot high stripe at a time.
+     * The whole command sequence is transposed from the packed rows into a
+     * single preallocated array.
+     *
      * @param builder the ByteArrayBuilder to use
      */
     private void appendEpsonSlices(ByteArrayBuilder builder) {
-//        BitSet dots = data.getDots();
-//        outputStream.write(PrinterCommands.INIT);
- 
- 
-        // So we have our bitmap data sitting in a bit array called "dots."
-        // This is one long array of 1s (black) and 0s (white) pixels arranged
-        // as if we had scanned the bitmap from top to bottom, left to right.
-        // The printer wants to see these arranged in bytes stacked three high.
-        // So, essentially, we need to read 24 bits for x = 0, generate those
-        // bytes, and send them to the printer, then keep increasing x. If our
-        // image is more than 24 dots high, we have to send a second bit image
-        // command to draw the next slice of 24 dots in the image.
- 
-        // Set the line spacing to 24 dots, the height of each "stripe" of the
-        // image that we're drawing. If we don't do this, and we need to
-        // draw the bitmap in multiple passes, then we'll end up with some
-        // whitespace between slices of the image since the default line
-        // height--how much the printer moves on a newline--is 30 dots.
-        builder.append(new byte[] {0x1B, 0x33, 24});
- 
-        // OK. So, starting from x = 0, read 24 bits down and send that data
-        // to the printer. The offset variable keeps track of our global 'y'
-        // position in the image. For example, if we were drawing a bitmap
-        // that is 48 pixels high, then this while loop will execute twice,
-        // once for each pass of 24 dots. On the first pass, the offset is
-        // 0, and on the second pass, the offset is 24. We keep making
-        // these 24-dot stripes until we've execute past the height of the
-        // bitmap.
-        int offset = 0;
- 
-        while (offset < getHeight()) {
-            // The third and fourth parameters to the bit image command are
-            // 'nL' and 'nH'. The 'L' and the 'H' refer to 'low' and 'high', respectively.
-            // All 'n' really is is the width of the image that we're about to draw.
-            // Since the width can be greater than 255 dots, the parameter has to
-            // be split across two bytes, which is why the documentation says the
-            // width is 'nL' + ('nH' * 256).
-            //builder.append(new byte[] {0x1B, 0x2A, 33, -128, 0});
-            byte nL = (byte)((int)(getWidth() % 256));
-            byte nH = (byte)((int)(getWidth()/256));
-            builder.append(new byte[] {0x1B, 0x2A, (byte)dotDensity, nL , nH});
- 
-            for (int x = 0; x < getWidth(); ++x) {
-                // Remember, 24 dots = 24 bits = 3 bytes.
-                // The 'k' variable keeps track of which of those
-                // three bytes that we're currently scribbling into.
-                for (int k = 0; k < 3; ++k) {
-                    byte slice = 0;
- 
-                    // A byte is 8 bits. The 'b' variable keeps track
-                    // of which bit in the byte we're recording.
-                    for (int b = 0; b < 8; ++b) {
-                        // Calculate the y position that we're currently
-                        // trying to draw. We take our offset, divide it
-                        // by 8 so we're talking about the y offset in
-                        // terms of bytes, add our current 'k' byte
-                        // offset to that, multiple by 8 to get it in terms
-                        // of bits again, and add our bit offset to it.
-                        int y = (((offset / 8) + k) * 8) + b;
- 
-                        // Calculate the location of the pixel we want in the bit array.
-                        // It'll be at (y * width) + x.
-                        int i = (y * getWidth()) + x;
- 
-                        // If the image (or this stripe of the image)
-                        // is shorter than 24 dots, pad with zero.
-                        boolean v = false;
-                        if (i < getImageAsBooleanArray().length) {
-                            v = getImageAsBooleanArray()[i];
-                        }
- 
-                        // Finally, store our bit in the byte that we're currently
-                        // scribbling to. Our current 'b' is actually the exact
-                        // opposite of where we want it to be in the byte, so
-                        // subtract it from 7, shift our bit into place in a temp
-                        // byte, and OR it with the target byte to get it into there.
-                        slice |= (byte) ((v ? 1 : 0) << (7 - b));
+        byte[] packed = getImageAsByteArray();
+        int width = getWidth();
+        int height = getHeight();
+        int bytesPerRow = getBytesPerRow();
+        int stripes = (height + 23) / 24;
+        int stripeLength = 5 + width * 3 + 1;   // ESC * m nL nH, 3 bytes per column, LF
+
+        byte[] commands = new byte[3 + stripes * stripeLength + 3];
+        int pos = 0;
+
+        // Set the line spacing to 24 dots, the height of each stripe, so the
+        // stripes are printed without whitespace between them
+        commands[pos++] = 0x1B;
+        commands[pos++] = 0x33;
+        commands[pos++] = 24;
+
+        for (int offset = 0; offset < height; offset += 24) {
+            // The width of the stripe is split across the 'nL' and 'nH' bytes
+            commands[pos++] = 0x1B;
+            commands[pos++] = 0x2A;
+            commands[pos++] = (byte)dotDensity;
+            commands[pos++] = (byte)(width % 256);
+            commands[pos++] = (byte)(width / 256);
+
+            // Scatter each set dot of the stripe's rows into its column byte,
+            // rows past the bottom of the image stay blank
+            for (int k = 0; k < 24 && offset + k < height; k++) {
+                int rowStart = (offset + k) * bytesPerRow;
+                int bit = 0x80 >>> (k & 7);
+                for (int bx = 0; bx < bytesPerRow; bx++) {
+                    int v = packed[rowStart + bx] & 0xFF;
+                    for (; v != 0; v &= v - 1) {
+                        int x = bx * 8 + 7 - Integer.numberOfTrailingZeros(v);
+                        commands[pos + x * 3 + (k >> 3)] |= bit;
                     }
- 
-                    // Phew! Write the damn byte to the buffer
-                    builder.append(new byte[] {slice});
                 }
             }
- 
-            // We're done with this 24-dot high pass. Render a newline
-            // to bump the print head down to the next line
-            // and keep on trucking.
-            offset += 24;
-            builder.append(new byte[] {10});
-        }
- 
+            pos += width * 3;
+
+            // Render a newline to bump the print head down to the next stripe
+            commands[pos++] = 10;
+        }
+
         // Restore the line spacing to the default of 30 dots.
-        builder.append(new byte[] {0x1B, 0x33, 30});
+        commands[pos++] = 0x1B;
+        commands[pos++] = 0x33;
+        commands[pos] = 30;
 
+        builder.append(commands);
     }
-    
+
+    /**
+     * Appends the image as ESC/POS <code>GS v 0</code> raster commands, which
+     * take the packed rows as they are.  Tall images are split into several
+     * commands of at most <code>RASTER_BAND_ROWS</code> rows.
+     *
+     * @param builder the ByteArrayBuilder to use
+     */
+    private void appendEpsonRaster(ByteArrayBuilder builder) {
+        byte[] packed = getImageAsByteArray();
+        int height = getHeight();
+        int bytesPerRow = getBytesPerRow();
+
+        for (int offset = 0; offset < height; offset += RASTER_BAND_ROWS) {
+            int rows = Math.min(RASTER_BAND_ROWS, height - offset);
+            // GS v 0 m xL xH yL yH, with x in bytes and y in dots
+            builder.append(new byte[] {0x1D, 0x76, 0x30, 0,
+                    (byte)(bytesPerRow % 256), (byte)(bytesPerRow / 256),
+                    (byte)(rows % 256), (byte)(rows / 256)});
+            builder.append(packed, offset * bytesPerRow, rows * bytesPerRow);
+        }
+    }
+
     /**
      * Checks if the image width is a multiple of 8, and if it's not, 
      * pads the image on the right side with blank pixels. <br />
      * Due to limitations on the EPL2 language, image widths must be a multiple 
-     * of 8.
+     * of 8.  Images read in bands are padded one band at a time as they are
+     * decoded.
      */
     private void validateImageWidth()
     {
-        BufferedImage oldBufferedImage = this.bufferedImage;
-        int height=oldBufferedImage.getHeight();
-        int width=oldBufferedImage.getWidth();
         if(width%8!=0) 
         {
-            int newWidth=(width/8+1)*8;
-            BufferedImage newBufferedImage=new BufferedImage(newWidth, height,
-                    BufferedImage.TYPE_INT_ARGB);
-            
-            Graphics2D g = newBufferedImage.createGraphics();
-            g.drawImage(oldBufferedImage, 0, 0, null);
-            g.dispose();
-            setBufferedImage(newBufferedImage);
+            width=(width/8+1)*8;
+            if (bufferedImage != null) {
+                setBufferedImage(padImage(bufferedImage));
+            }
             init();
        }
     }
+
+    /**
+     * Pads <code>image</code> on the right side with blank pixels up to
+     * <code>getWidth()</code>
+     *
+     * @return the padded image, or <code>image</code> itself if it's already wide enough
+     */
+    private BufferedImage padImage(BufferedImage image) {
+        if (image.getWidth() >= getWidth()) {
+            return image;
+        }
+
+        BufferedImage padded = new BufferedImage(getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = padded.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return padded;
+    }
 }
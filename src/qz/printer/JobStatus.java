@@ -0,0 +1,65 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT:  This software is dual-licensed
+ *
+ * LGPL 2.1
+ * This is free software.  This software and source code are released under
+ * the "LGPL 2.1 License".  A copy of this license should be distributed with
+ * this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE
+ * This software and source code *may* instead be distributed under the
+ * "QZ Industries Source Code License", available by request ONLY.  If source
+ * code for this project is to be made proprietary for an individual and/or a
+ * commercial entity, written permission via a copy of the "QZ Industries Source
+ * Code License" must be obtained first.  If you've obtained a copy of the
+ * proprietary license, the terms and conditions of the license apply only to
+ * the licensee identified in the agreement.  Only THEN may the LGPL 2.1 license
+ * be voided.
+ *
+ */
+
+package qz.printer;
+
+/**
+ * Enum for the states a print job goes through, from waiting in the queue to
+ * its final outcome.
+ *
+ * @author Tres Finocchiaro
+ */
+public enum JobStatus {
+
+    QUEUED, SPOOLING, SENT, COMPLETED, FAILED, CANCELED, TIMED_OUT;
+
+    /**
+     * Returns whether or not this status is the final outcome of a job
+     * @return true if the job will not change status anymore
+     */
+    public boolean isDone() {
+        switch (this) {
+            case QUEUED:
+            case SPOOLING:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Returns whether or not this status represents a job that did not print
+     * @return true if the job failed, was canceled or timed out
+     */
+    public boolean isError() {
+        switch (this) {
+            case FAILED:
+            case CANCELED:
+            case TIMED_OUT:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT:  This software is dual-licensed
+ *
+ * LGPL 2.1
+ * This is free software.  This software and source code are released under
+ * the "LGPL 2.1 License".  A copy of this license should be distributed with
+ * this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE
+ * This software and source code *may* instead be distributed under the
+ * "QZ Industries Source Code License", available by request ONLY.  If source
+ * code for this project is to be made proprietary for an individual and/or a
+ * commercial entity, written permission via a copy of the "QZ Industries Source
+ * Code License" must be obtained first.  If you've obtained a copy of the
+ * proprietary license, the terms and conditions of the license apply only to
+ * the licensee identified in the agreement.  Only THEN may the LGPL 2.1 license
+ * be voided.
+ *
+ */
+
+package qz.printer;
+
+import com.sun.pdfview.PDFFile;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Least recently used cache of parsed PDF documents, keyed by a digest of the
+ * PDF bytes, so copies and repeat prints of the same template skip parsing.
+ * Pages rendered for raw printers are also kept, in a cache bounded by the
+ * total size of the images and held by soft references so the garbage
+ * collector may still reclaim them.
+ *
+ * @author Tres Finocchiaro
+ */
+public class PDFCache {
+
+    private final LinkedHashMap<String,Document> documents = new LinkedHashMap<String,Document>(16, 0.75f, true);
+    private final LinkedHashMap<String,PageEntry> pages = new LinkedHashMap<String,PageEntry>(16, 0.75f, true);
+
+    private int maxDocuments;
+    private long maxPageSize;
+    private long pageSize = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long pageHits = 0;
+    private long pageMisses = 0;
+
+    /**
+     * @param maxDocuments maximum number of documents kept, 0 to disable caching
+     * @param maxPageSize maximum total size of the rendered pages in bytes, 0 to disable page caching
+     */
+    public PDFCache(int maxDocuments, long maxPageSize) {
+        this.maxDocuments = maxDocuments;
+        this.maxPageSize = maxPageSize;
+    }
+
+    /**
+     * Returns the cached document for <code>pdfData</code>, or a new one if
+     * this PDF hasn't been seen recently
+     *
+     * @param pdfData the PDF file
+     * @return the document, parsed on first use
+     */
+    public synchronized Document getDocument(byte[] pdfData) {
+        String key = ImageCache.getKey(pdfData);
+        Document document = documents.get(key);
+        if (document == null) {
+            misses++;
+            document = new Document(key, ByteBuffer.wrap(pdfData));
+            if (maxDocuments > 0) {
+                documents.put(key, document);
+                trim();
+            }
+        } else {
+            hits++;
+        }
+        return document;
+    }
+
+    private synchronized BufferedImage getPage(String key) {
+        PageEntry entry = pages.get(key);
+        BufferedImage image = entry == null? null:entry.image.get();
+        if (image == null) {
+            if (entry != null) {
+                // Reclaimed by the garbage collector
+                pages.remove(key);
+                pageSize -= entry.size;
+            }
+            pageMisses++;
+        } else {
+            pageHits++;
+        }
+        return image;
+    }
+
+    private synchronized void putPage(String key, BufferedImage image) {
+        // Rendered pages are ARGB, 4 bytes per pixel
+        long size = 4L * image.getWidth() * image.getHeight();
+        if (size > maxPageSize) {
+            return;
+        }
+
+        PageEntry previous = pages.put(key, new PageEntry(image, size));
+        if (previous != null) {
+            pageSize -= previous.size;
+        }
+        pageSize += size;
+        trim();
+    }
+
+    /**
+     * @param maxDocuments maximum number of documents kept, 0 to disable caching
+     */
+    public synchronized void setMaxDocuments(int maxDocuments) {
+        this.maxDocuments = maxDocuments;
+        trim();
+    }
+
+    /**
+     * @param maxPageSize maximum total size of the rendered pages in bytes, 0 to disable page caching
+     */
+    public synchronized void setMaxPageSize(long maxPageSize) {
+        this.maxPageSize = maxPageSize;
+        trim();
+    }
+
+    public synchronized void clear() {
+        documents.clear();
+        pages.clear();
+        pageSize = 0;
+    }
+
+    private void trim() {
+        Iterator<Document> docs = documents.values().iterator();
+        while (documents.size() > maxDocuments && docs.hasNext()) {
+            docs.next();
+            docs.remove();
+        }
+
+        Iterator<PageEntry> it = pages.values().iterator();
+        while (pageSize > maxPageSize && it.hasNext()) {
+            pageSize -= it.next().size;
+            it.remove();
+        }
+    }
+
+    /**
+     * @return document and page hit and miss counts, i.e. for logging
+     */
+    @Override
+    public synchronized String toString() {
+        return "PDFCache [documents=" + documents.size() + "/" + maxDocuments + ", hits=" + hits + ", misses=" + misses
+                + ", pages=" + pages.size() + ", pageSize=" + pageSize + "/" + maxPageSize
+                + ", pageHits=" + pageHits + ", pageMisses=" + pageMisses + "]";
+    }
+
+    private static class PageEntry {
+        private final SoftReference<BufferedImage> image;
+        private final long size;
+
+        private PageEntry(BufferedImage image, long size) {
+            this.image = new SoftReference<BufferedImage>(image);
+            this.size = size;
+        }
+    }
+
+
+    /**
+     * A cached PDF.  <code>PDFFile</code> is not safe to render from several
+     * threads, so each print borrows its own parsed copy and returns it when
+     * done, to be reused by the next print of the same document.  At most one
+     * copy per render thread is kept, by soft references.
+     */
+    public class Document {
+
+        private final String key;
+        private final ByteBuffer pdfData;
+        private final BlockingQueue<SoftReference<PDFFile>> pdfFiles = new LinkedBlockingQueue<SoftReference<PDFFile>>(PDFRasterizer.THREADS);
+        private volatile int pageCount = -1;
+
+        private Document(String key, ByteBuffer pdfData) {
+            this.key = key;
+            this.pdfData = pdfData;
+        }
+
+        /**
+         * @return the PDF file, as a new buffer sharing the cached bytes
+         */
+        public ByteBuffer getData() {
+            return pdfData.duplicate();
+        }
+
+        /**
+         * Takes a parsed copy of the document for the exclusive use of the
+         * caller, parsing a new one if all copies are in use
+         *
+         * @return the parsed document, to be handed back with <code>release</code>
+         * @throws IOException if the PDF cannot be read
+         */
+        public PDFFile borrow() throws IOException {
+            PDFFile pdf = null;
+            SoftReference<PDFFile> ref;
+            while (pdf == null && (ref = pdfFiles.poll()) != null) {
+                pdf = ref.get();    // null if reclaimed by the garbage collector
+            }
+            if (pdf == null) {
+                pdf = new PDFFile(getData());
+            }
+            if (pageCount < 0) {
+                pageCount = pdf.getNumPages();
+            }
+            return pdf;
+        }
+
+        /**
+         * @param pdf a parsed copy from <code>borrow</code>, no longer used by
+         * the caller.  Discarded if enough copies are kept already.
+         */
+        public void release(PDFFile pdf) {
+            if (pdf != null) {
+                pdfFiles.offer(new SoftReference<PDFFile>(pdf));
+            }
+        }
+
+        public int getPageCount() throws IOException {
+            if (pageCount < 0) {
+                release(borrow());
+            }
+            return pageCount;
+        }
+
+        /**
+         * @param pageNumber page number, starting at 1
+         * @param dotsPerInch density the page was rendered at
+         * @return the cached page, or <code>null</code> if not cached
+         */
+        public BufferedImage getPageImage(int pageNumber, int dotsPerInch) {
+            return getPage(key + "#" + pageNumber + "@" + dotsPerInch);
+        }
+
+        /**
+         * @param pageNumber page number, starting at 1
+         * @param dotsPerInch density the page was rendered at
+         * @param image the rendered page, which must not be modified afterwards
+         */
+        public void putPageImage(int pageNumber, int dotsPerInch, BufferedImage image) {
+            putPage(key + "#" + pageNumber + "@" + dotsPerInch, image);
+        }
+    }
+}
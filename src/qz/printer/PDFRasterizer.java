@@ -0,0 +1,199 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT:  This software is dual-licensed
+ *
+ * LGPL 2.1
+ * This is free software.  This software and source code are released under
+ * the "LGPL 2.1 License".  A copy of this license should be distributed with
+ * this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE
+ * This software and source code *may* instead be distributed under the
+ * "QZ Industries Source Code License", available by request ONLY.  If source
+ * code for this project is to be made proprietary for an individual and/or a
+ * commercial entity, written permission via a copy of the "QZ Industries Source
+ * Code License" must be obtained first.  If you've obtained a copy of the
+ * proprietary license, the terms and conditions of the license apply only to
+ * the licensee identified in the agreement.  Only THEN may the LGPL 2.1 license
+ * be voided.
+ *
+ */
+
+package qz.printer;
+
+import com.sun.pdfview.PDFFile;
+import com.sun.pdfview.PDFPage;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Renders the pages of a PDF to images for raw printers.  Pages are rendered
+ * and converted on a pool of worker threads, while the results are handed
+ * back in page order on the calling thread as soon as each one is ready.
+ *
+ * @author Tres Finocchiaro
+ */
+public class PDFRasterizer {
+
+    private static final Logger log = Logger.getLogger(PDFRasterizer.class.getName());
+
+    /**
+     * Number of pages rendered at the same time.  Can be overridden with the
+     * <code>pdfRasterThreads</code> system property
+     */
+    public static final int THREADS = Math.max(1, Integer.getInteger("pdfRasterThreads",
+                                                                     Runtime.getRuntime().availableProcessors()));
+
+    private static ExecutorService pageExecutor;
+
+    private final PDFCache.Document document;
+    private final int dotsPerInch;
+    private final int pageCount;
+
+    /**
+     * Receives the pages of the PDF as they are rendered
+     */
+    public interface PageHandler {
+        /**
+         * Converts a rendered page into printer commands.  Called from the
+         * worker threads, in any order.
+         *
+         * @param image the page rendered at the requested density
+         * @param pageNumber page number, starting at 1
+         * @return the commands printing the page
+         */
+        byte[] convert(BufferedImage image, int pageNumber) throws Exception;
+
+        /**
+         * Called on the thread which started the rasterization, once per page
+         * in page order.
+         *
+         * @param pageNumber page number, starting at 1
+         * @param commands the commands returned by <code>convert</code>
+         */
+        void append(int pageNumber, byte[] commands) throws Exception;
+    }
+
+    /**
+     * @param document the PDF, each worker borrows its own parsed copy
+     * @param dotsPerInch density of the printer, pages are rendered at this
+     * many dots per inch
+     * @throws IOException if the PDF cannot be read
+     */
+    public PDFRasterizer(PDFCache.Document document, int dotsPerInch) throws IOException {
+        this.document = document;
+        this.dotsPerInch = dotsPerInch;
+        this.pageCount = document.getPageCount();
+        log.info("Rasterizing " + pageCount + " PDF page(s) at " + dotsPerInch + " dpi");
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public int getDotsPerInch() {
+        return dotsPerInch;
+    }
+
+    /**
+     * Renders a single page at <code>getDotsPerInch()</code>, on a white
+     * background.  Pages already rendered at this density for a previous
+     * print of the same document are reused.
+     *
+     * @param pageNumber page number, starting at 1
+     * @return the rendered page, which must not be modified
+     * @throws IOException if the page cannot be read
+     */
+    public BufferedImage getPageImage(int pageNumber) throws IOException {
+        BufferedImage image = document.getPageImage(pageNumber, dotsPerInch);
+        if (image == null) {
+            image = renderPage(pageNumber);
+            document.putPageImage(pageNumber, dotsPerInch, image);
+        }
+        return image;
+    }
+
+    private BufferedImage renderPage(int pageNumber) throws IOException {
+        PDFFile pdf = document.borrow();
+        try {
+            PDFPage page = pdf.getPage(pageNumber, true);
+            if (page == null) {
+                throw new IOException("Cannot read PDF page " + pageNumber);
+            }
+
+            // PDF units are points, 72 per inch
+            int width = Math.max(1, Math.round(page.getWidth() * dotsPerInch / 72f));
+            int height = Math.max(1, Math.round(page.getHeight() * dotsPerInch / 72f));
+            return (BufferedImage)page.getImage(width, height, null, null, true, true);
+        } finally {
+            document.release(pdf);
+        }
+    }
+
+    /**
+     * Renders and converts every page with <code>handler</code>.  At most
+     * twice as many pages as there are workers are kept waiting to be
+     * appended, so memory doesn't grow with the page count.
+     *
+     * @param handler converts the pages, then receives them in order
+     * @throws Exception the first exception thrown rendering, converting or
+     * appending a page, the remaining pages are canceled
+     */
+    public void rasterize(final PageHandler handler) throws Exception {
+        LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+        int window = THREADS * 2;
+        int nextPage = 1;
+
+        try {
+            for (int pageNumber = 1; pageNumber <= pageCount; pageNumber++) {
+                for (; nextPage <= pageCount && pending.size() < window; nextPage++) {
+                    final int page = nextPage;
+                    pending.add(getPageExecutor().submit(new Callable<byte[]>() {
+                        public byte[] call() throws Exception {
+                            return handler.convert(getPageImage(page), page);
+                        }
+                    }));
+                }
+
+                handler.append(pageNumber, getResult(pending.removeFirst()));
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static byte[] getResult(Future<byte[]> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static synchronized ExecutorService getPageExecutor() {
+        if (pageExecutor == null) {
+            pageExecutor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PDFRasterizer-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return pageExecutor;
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT:  This software is dual-licensed
+ *
+ * LGPL 2.1
+ * This is free software.  This software and source code are released under
+ * the "LGPL 2.1 License".  A copy of this license should be distributed with
+ * this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE
+ * This software and source code *may* instead be distributed under the
+ * "QZ Industries Source Code License", available by request ONLY.  If source
+ * code for this project is to be made proprietary for an individual and/or a
+ * commercial entity, written permission via a copy of the "QZ Industries Source
+ * Code License" must be obtained first.  If you've obtained a copy of the
+ * proprietary license, the terms and conditions of the license apply only to
+ * the licensee identified in the agreement.  Only THEN may the LGPL 2.1 license
+ * be voided.
+ *
+ */
+
+package qz.printer;
+
+import java.util.Locale;
+
+/**
+ * Record of a single print job tracked by
+ * <code>PrintJobManager</code>, including its status and timings.
+ *
+ * @author Tres Finocchiaro
+ */
+public class PrintJobInfo {
+
+    private final String id;
+    private final String name;
+    private final long queued;
+
+    private volatile JobStatus status = JobStatus.QUEUED;
+    private volatile long started = 0;
+    private volatile long finished = 0;
+    private volatile String error;
+    private JobStatus reported;     // failure reported by the printer while still spooling
+
+    public PrintJobInfo(String id, String name) {
+        this.id = id;
+        this.name = name;
+        this.queued = System.currentTimeMillis();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public JobStatus getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the error message if the job failed, <code>null</code> otherwise
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return the time in milliseconds the job waited before spooling started
+     */
+    public long getQueueTime() {
+        return (started > 0? started:System.currentTimeMillis()) - queued;
+    }
+
+    /**
+     * @return the time in milliseconds spent spooling the job, 0 if not started yet
+     */
+    public long getSpoolTime() {
+        if (started == 0) {
+            return 0;
+        }
+        return (finished > 0? finished:System.currentTimeMillis()) - started;
+    }
+
+    void setStarted() {
+        started = System.currentTimeMillis();
+        status = JobStatus.SPOOLING;
+    }
+
+    synchronized void setFinished(JobStatus status, String error) {
+        finished = System.currentTimeMillis();
+        if (reported != null && !status.isError()) {
+            // An earlier part of the job failed at the printer while the rest was spooling
+            status = reported;
+            error = getReportedError(reported);
+        }
+        this.error = error;
+        this.status = status;
+    }
+
+    /**
+     * Records a completion or failure the printer reported after the data was
+     * sent.  Only a job finished as <code>SENT</code> changes status, a failure
+     * reported while the job is still spooling is applied when it finishes.
+     *
+     * @return whether the status of the job changed
+     */
+    synchronized boolean setReported(JobStatus status) {
+        if (this.status == JobStatus.SENT) {
+            this.error = status.isError()? getReportedError(status):null;
+            this.status = status;
+            return true;
+        }
+        if (!this.status.isDone() && status.isError()) {
+            reported = status;
+        }
+        return false;
+    }
+
+    private String getReportedError(JobStatus status) {
+        return "Printer reported the job " + status.name().toLowerCase(Locale.ENGLISH).replace('_', ' ') + " after it was sent";
+    }
+
+    @Override
+    public String toString() {
+        return "Print job " + id + " \"" + name + "\" " + status
+                + " (queued " + getQueueTime() + "ms, spooled " + getSpoolTime() + "ms)"
+                + (error == null? "":": " + error);
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT:  This software is dual-licensed
+ *
+ * LGPL 2.1
+ * This is free software.  This software and source code are released under
+ * the "LGPL 2.1 License".  A copy of this license should be distributed with
+ * this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE
+ * This software and source code *may* instead be distributed under the
+ * "QZ Industries Source Code License", available by request ONLY.  If source
+ * code for this project is to be made proprietary for an individual and/or a
+ * commercial entity, written permission via a copy of the "QZ Industries Source
+ * Code License" must be obtained first.  If you've obtained a copy of the
+ * proprietary license, the terms and conditions of the license apply only to
+ * the licensee identified in the agreement.  Only THEN may the LGPL 2.1 license
+ * be voided.
+ *
+ */
+
+package qz.printer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs print jobs in the background, one at a time and in the order submitted,
+ * so the caller gets a job ID back immediately and can keep preparing the next
+ * job while the previous one spools.  The most recent jobs are kept in a
+ * bounded table so their status and timings can be looked up by ID.
+ *
+ * @author Tres Finocchiaro
+ */
+public class PrintJobManager {
+
+    private static final Logger log = Logger.getLogger(PrintJobManager.class.getName());
+
+    // Number of jobs kept in the table, oldest are forgotten first
+    public static final int MAX_JOBS = 100;
+
+    private static final AtomicLong nextId = new AtomicLong(1);
+
+    /**
+     * Notified every time a job changes status
+     */
+    public interface Listener {
+        void jobChanged(PrintJobInfo job);
+    }
+
+    /**
+     * A job which can report a status the printer sends after
+     * <code>call()</code> has returned, i.e. a failure once the data was transferred
+     */
+    public static abstract class Job implements Callable<JobStatus> {
+        private PrintJobManager manager;
+        private PrintJobInfo info;
+
+        /**
+         * Records a completion or failure reported by the printer for this job
+         *
+         * @param status the reported status
+         */
+        protected void reportStatus(JobStatus status) {
+            if (info.setReported(status)) {
+                log.info(info.toString());
+                manager.fireChanged(info);
+            }
+        }
+    }
+
+    private final Map<String,PrintJobInfo> jobs = new JobTable();
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private ExecutorService executor;
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Queues a print job.  The job returns its final status, or throws if it
+     * failed, in which case the job is marked as <code>FAILED</code>.  A
+     * <code>Job</code> may also report a later status from the printer.
+     *
+     * @param name descriptive name of the job, i.e. the print job name
+     * @param job the work sending the data to the printer
+     * @return the ID of the queued job
+     */
+    public String submit(String name, final Callable<JobStatus> job) {
+        final PrintJobInfo info = new PrintJobInfo(String.valueOf(nextId.getAndIncrement()), name);
+        synchronized(jobs) {
+            jobs.put(info.getId(), info);
+        }
+        fireChanged(info);
+
+        if (job instanceof Job) {
+            ((Job)job).manager = this;
+            ((Job)job).info = info;
+        }
+
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                info.setStarted();
+                fireChanged(info);
+
+                try {
+                    JobStatus status = job.call();
+                    info.setFinished(status == null? JobStatus.SENT:status, null);
+                } catch (Throwable t) {
+                    log.log(Level.WARNING, "Print job " + info.getId() + " failed", t);
+                    String msg = t.getLocalizedMessage();
+                    info.setFinished(JobStatus.FAILED, msg == null? t.getClass().getSimpleName():msg);
+                }
+
+                log.info(info.toString());
+                fireChanged(info);
+            }
+        });
+
+        return info.getId();
+    }
+
+    /**
+     * @param id ID returned by <code>submit</code>
+     * @return the job, or <code>null</code> if unknown or no longer tracked
+     */
+    public PrintJobInfo getJob(String id) {
+        synchronized(jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    /**
+     * @return the tracked jobs, oldest first
+     */
+    public List<PrintJobInfo> getJobs() {
+        synchronized(jobs) {
+            return new ArrayList<PrintJobInfo>(jobs.values());
+        }
+    }
+
+    /**
+     * Stops the background thread, jobs not yet started are discarded
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PrintJobManager");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private void fireChanged(PrintJobInfo job) {
+        for(Listener listener : listeners) {
+            try {
+                listener.jobChanged(job);
+            } catch (Exception e) {
+                log.log(Level.WARNING, "Could not notify job status", e);
+            }
+        }
+    }
+
+    /**
+     * Jobs by ID in the order submitted, forgetting the oldest past <code>MAX_JOBS</code>
+     */
+    private static class JobTable extends LinkedHashMap<String,PrintJobInfo> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,PrintJobInfo> eldest) {
+            return size() > MAX_JOBS;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT:  This software is dual-licensed
+ *
+ * LGPL 2.1
+ * This is free software.  This software and source code are released under
+ * the "LGPL 2.1 License".  A copy of this license should be distributed with
+ * this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE
+ * This software and source code *may* instead be distributed under the
+ * "QZ Industries Source Code License", available by request ONLY.  If source
+ * code for this project is to be made proprietary for an individual and/or a
+ * commercial entity, written permission via a copy of the "QZ Industries Source
+ * Code License" must be obtained first.  If you've obtained a copy of the
+ * proprietary license, the terms and conditions of the license apply only to
+ * the licensee identified in the agreement.  Only THEN may the LGPL 2.1 license
+ * be voided.
+ *
+ */
+
+package qz.printer;
+
+import qz.common.LogIt;
+
+import javax.print.event.PrintJobEvent;
+import javax.print.event.PrintJobListener;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks the outcome of a single <code>DocPrintJob</code>.  A new monitor
+ * should be registered for every job, the waiting thread is released as soon
+ * as the print service reports the job as transferred, completed, failed or
+ * canceled instead of polling for it.
+ *
+ * @author Tres Finocchiaro
+ */
+public class PrintJobMonitor implements PrintJobListener {
+
+    /**
+     * Notified when the status changes after <code>await</code> has returned,
+     * i.e. the printer reports a failure once the data was transferred
+     */
+    public interface Listener {
+        void statusChanged(JobStatus status);
+    }
+
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final AtomicReference<JobStatus> status = new AtomicReference<JobStatus>(JobStatus.SPOOLING);
+    private volatile Listener listener;
+
+    /**
+     * @param listener notified of status changes after the waiting thread was released, may be <code>null</code>
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Waits for the print service to report the end of the job.
+     *
+     * @param timeout maximum time to wait in milliseconds, or 0 to wait indefinitely
+     * @return the final status of the job, <code>TIMED_OUT</code> if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public JobStatus await(long timeout) throws InterruptedException {
+        if (timeout > 0) {
+            if (!finished.await(timeout, TimeUnit.MILLISECONDS)) {
+                status.compareAndSet(JobStatus.SPOOLING, JobStatus.TIMED_OUT);
+            }
+        } else {
+            finished.await();
+        }
+        return status.get();
+    }
+
+    /**
+     * Returns the latest status of the job.  Unlike <code>await</code>, this
+     * also reflects a completion or failure reported after the data was transferred.
+     *
+     * @return the current status of the job
+     */
+    public JobStatus getStatus() {
+        return status.get();
+    }
+
+    private void finish(JobStatus jobStatus) {
+        boolean released = finished.getCount() == 0;
+
+        // Completion or failure may still follow SENT, anything else only replaces SPOOLING
+        JobStatus current = status.get();
+        boolean changed = false;
+        if (current == JobStatus.SPOOLING
+                || (current == JobStatus.SENT && (jobStatus == JobStatus.COMPLETED || jobStatus.isError()))) {
+            changed = status.compareAndSet(current, jobStatus);
+        }
+        finished.countDown();
+
+        Listener l = listener;
+        if (changed && released && l != null) {
+            l.statusChanged(jobStatus);
+        }
+    }
+
+    //@Override //JDK 1.6
+    public void printDataTransferCompleted(PrintJobEvent printJobEvent) {
+        LogIt.log(printJobEvent);
+        finish(JobStatus.SENT);
+    }
+
+    //@Override //JDK 1.6
+    public void printJobCompleted(PrintJobEvent printJobEvent) {
+        LogIt.log(printJobEvent);
+        finish(JobStatus.COMPLETED);
+    }
+
+    //@Override //JDK 1.6
+    public void printJobFailed(PrintJobEvent printJobEvent) {
+        LogIt.log(printJobEvent);
+        finish(JobStatus.FAILED);
+    }
+
+    //@Override //JDK 1.6
+    public void printJobCanceled(PrintJobEvent printJobEvent) {
+        LogIt.log(printJobEvent);
+        finish(JobStatus.CANCELED);
+    }
+
+    //@Override //JDK 1.6
+    public void printJobNoMoreEvents(PrintJobEvent printJobEvent) {
+        LogIt.log(printJobEvent);
+        finish(JobStatus.SENT);
+    }
+
+    //@Override //JDK 1.6
+    public void printJobRequiresAttention(PrintJobEvent printJobEvent) {
+        LogIt.log(printJobEvent);
+    }
+}
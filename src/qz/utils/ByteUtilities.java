@@ -30,7 +30,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
 /**
@@ -145,43 +147,87 @@ public class ByteUtilities {
      * This is useful for large print batches that need to be split up (for
      * example) after the P1 or ^XO command has been issued.
      *
-     * TODO: A rewrite of this would be a proper <code>Iteratable</code>
-     * interface paired with an <code>Iterator</code> that does this
-     * automatically and would eliminate the need for a
-     * <code>indicesOfSublist()</code> function.
-     *
      * @param src array to split
      * @param pattern pattern to determine where split should occur
      * @param count number of arrays to split data into
      * @return array of byte arrays
      */
-    public static LinkedList<ByteArrayBuilder> splitByteArray(byte[] src, byte[] pattern, int count)
-            throws NullPointerException, IndexOutOfBoundsException, ArrayStoreException {
+    public static LinkedList<ByteArrayBuilder> splitByteArray(byte[] src, byte[] pattern, int count) {
         LinkedList<ByteArrayBuilder> byteArrayList = new LinkedList<ByteArrayBuilder>();
-        int[] split = indicesOfSublist(src, pattern);
-        count = count < 1 ? 1 : count;
-        int _count = 1;
-        int prev = 0;
-        ByteArrayBuilder b = new ByteArrayBuilder();
-        for (int i : split) {
-            byte[] temp = new byte[i - prev + pattern.length];
-            System.arraycopy(src, prev, temp, 0, temp.length);
-            b.append(temp);
-            if (_count < count) {
-                _count++;
-            } else {
-                byteArrayList.add(b);
-                b = new ByteArrayBuilder();
-                _count = 1;
-            }
-            prev = i + pattern.length;
-        }
-        if (!byteArrayList.contains(b)) {
+        for (ByteArrayBuilder b : splitByteArray(new ByteArrayBuilder(src), pattern, count)) {
             byteArrayList.add(b);
         }
         return byteArrayList;
     }
 
+    /**
+     * Lazily splits <code>src</code> after every <code>count</code>
+     * instances of <code>pattern</code>.  Each spool is searched for only
+     * when requested from the iterator, so the first one can be printed
+     * before the rest of the data has been scanned.  Spools are slices
+     * sharing the data of <code>src</code>, data after the last instance of
+     * <code>pattern</code> is not returned.
+     *
+     * @param src data to split
+     * @param pattern pattern to determine where split should occur
+     * @param count number of occurrences of <code>pattern</code> per spool
+     * @return spools of <code>src</code>, in order
+     */
+    public static Iterable<ByteArrayBuilder> splitByteArray(final ByteArrayBuilder src, final byte[] pattern, int count) {
+        final int perSpool = count < 1 ? 1 : count;
+
+        return new Iterable<ByteArrayBuilder>() {
+            public Iterator<ByteArrayBuilder> iterator() {
+                return new Iterator<ByteArrayBuilder>() {
+                    private final ByteArrayBuilder.Matcher matcher = src.matcher(pattern, 0);
+                    private int begin = 0;
+                    private ByteArrayBuilder next;
+                    private boolean done;
+
+                    public boolean hasNext() {
+                        if (next == null && !done) {
+                            next = findNext();
+                        }
+                        return next != null;
+                    }
+
+                    public ByteArrayBuilder next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        ByteArrayBuilder spool = next;
+                        next = null;
+                        return spool;
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+
+                    private ByteArrayBuilder findNext() {
+                        int end = begin;
+                        for (int found = 0; found < perSpool; found++) {
+                            int i = matcher.find();
+                            if (i < 0) {
+                                break;
+                            }
+                            end = i + pattern.length;
+                        }
+
+                        if (end == begin) {
+                            done = true;
+                            return null;
+                        }
+
+                        ByteArrayBuilder spool = src.slice(begin, end);
+                        begin = end;
+                        return spool;
+                    }
+                };
+            }
+        };
+    }
+
     // TODO: RKC - Verify method is not needed
     public static byte[] intArrayToByteArray(int ints[]) {
         byte[] bytes = new byte[ints.length];
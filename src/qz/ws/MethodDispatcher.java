@@ -0,0 +1,195 @@
+/**
+ * @author Tres Finocchiaro
+ *
+ * Copyright (C) 2013 Tres Finocchiaro, QZ Industries
+ *
+ * IMPORTANT: This software is dual-licensed
+ *
+ * LGPL 2.1 This is free software. This software and source code are released
+ * under the "LGPL 2.1 License". A copy of this license should be distributed
+ * with this software. http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * QZ INDUSTRIES SOURCE CODE LICENSE This software and source code *may* instead
+ * be distributed under the "QZ Industries Source Code License", available by
+ * request ONLY. If source code for this project is to be made proprietary for
+ * an individual and/or a commercial entity, written permission via a copy of
+ * the "QZ Industries Source Code License" must be obtained first. If you've
+ * obtained a copy of the proprietary license, the terms and conditions of the
+ * license apply only to the licensee identified in the agreement. Only THEN may
+ * the LGPL 2.1 license be voided.
+ *
+ */
+
+package qz.ws;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import qz.PrintFunction;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lookup table of the public <code>PrintFunction</code> methods callable over
+ * the WebSocket, keyed by method name and parameter count.  The table is built
+ * once so each message only costs a map lookup plus the pre-resolved parameter
+ * conversions instead of a reflective scan of every public method.
+ *
+ * @author Tres Finocchiaro
+ */
+public class MethodDispatcher {
+
+    private static final Logger log = Logger.getLogger(MethodDispatcher.class.getName());
+
+    private static final HashMap<String,List<Invoker>> invokers = new HashMap<String,List<Invoker>>();
+
+    static {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        for(Method method : PrintFunction.class.getMethods()) {
+            try {
+                String key = getKey(method.getName(), method.getParameterTypes().length);
+                List<Invoker> list = invokers.get(key);
+                if (list == null) {
+                    list = new ArrayList<Invoker>(1);
+                    invokers.put(key, list);
+                }
+                list.add(new Invoker(method, lookup.unreflect(method)));
+            }
+            catch(IllegalAccessException e) {
+                log.log(Level.WARNING, "Cannot dispatch method " + method.getName(), e);
+            }
+        }
+        log.info("Dispatch table built with " + invokers.size() + " method signatures");
+    }
+
+    private static String getKey(String name, int paramCount) {
+        return name + "#" + paramCount;
+    }
+
+    /**
+     * Returns the overloads of <code>name</code> accepting exactly
+     * <code>paramCount</code> parameters, in the order they should be attempted.
+     *
+     * @param name method name
+     * @param paramCount number of parameters supplied by the caller
+     * @return matching invokers, empty if none
+     */
+    public static List<Invoker> getInvokers(String name, int paramCount) {
+        List<Invoker> list = invokers.get(getKey(name, paramCount));
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return list;
+    }
+
+
+    /**
+     * A single <code>PrintFunction</code> method with its parameter converters
+     * resolved ahead of time.
+     */
+    public static class Invoker {
+
+        private final Method method;
+        private final MethodHandle handle;
+        private final Converter[] converters;
+
+        private Invoker(Method method, MethodHandle handle) {
+            this.method = method;
+
+            Class<?>[] types = method.getParameterTypes();
+            // Adapted once to (Object, Object[])Object, so every call is an exact invocation with no further conversion
+            this.handle = handle.asType(handle.type().generic()).asSpreader(Object[].class, types.length);
+
+            converters = new Converter[types.length];
+            for(int i = 0; i < types.length; i++) {
+                converters[i] = Converter.forType(types[i]);
+            }
+        }
+
+        public String getName() {
+            return method.getName();
+        }
+
+        /**
+         * Converts the JSON parameters into the types this method expects.
+         *
+         * @param parts JSON array of parameters sent by the browser
+         * @return parameters ready to be passed to <code>invoke</code>
+         * @throws JSONException if a parameter cannot be read
+         * @throws NumberFormatException if a numeric parameter cannot be parsed
+         */
+        public Object[] convert(JSONArray parts) throws JSONException {
+            Object[] params = new Object[converters.length];
+            for(int i = 0; i < converters.length; i++) {
+                params[i] = converters[i].convert(parts.getString(i));
+            }
+            return params;
+        }
+
+        /**
+         * Calls this method on <code>target</code> with already converted
+         * parameters.
+         *
+         * @param target the <code>PrintFunction</code> instance to call
+         * @param params parameters as returned by <code>convert</code>
+         * @return the method's return value, or <code>target</code> itself for void methods
+         * @throws Exception any exception thrown by the method itself
+         */
+        public Object invoke(PrintFunction target, Object[] params) throws Exception {
+            try {
+                Object result = (Object)handle.invokeExact((Object)target, params);
+                return method.getReturnType() == void.class? target:result;
+            }
+            catch(Exception e) {
+                throw e;
+            }
+            catch(Error e) {
+                throw e;
+            }
+            catch(Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+
+    /**
+     * Converts the <code>String</code> values sent by the browser into the
+     * parameter type expected by the method.
+     */
+    private enum Converter {
+        STRING, INTEGER, FLOAT, DOUBLE, BOOLEAN;
+
+        static Converter forType(Class<?> type) {
+            if (type == int.class || type == Integer.class) { return INTEGER; }
+            if (type == float.class || type == Float.class) { return FLOAT; }
+            if (type == double.class || type == Double.class) { return DOUBLE; }
+            if (type == boolean.class || type == Boolean.class) { return BOOLEAN; }
+
+            return STRING;
+        }
+
+        Object convert(String data) {
+            switch(this) {
+                case INTEGER:
+                    return Integer.decode(data);
+                case FLOAT:
+                    return Float.parseFloat(data);
+                case DOUBLE:
+                    return Double.parseDouble(data);
+                case BOOLEAN:
+                    return Boolean.parseBoolean(data);
+                case STRING:
+                default:
+                    return data;
+            }
+        }
+    }
+
+}
@@ -28,20 +28,25 @@ import org.codehaus.jettison.json.JSONObject;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.annotations.*;
 import org.eclipse.jetty.websocket.api.extensions.Frame;
-import org.joor.Reflect;
-import org.joor.ReflectException;
 import qz.PrintFunction;
 import qz.auth.Certificate;
 import qz.common.Constants;
+import qz.common.SerialFrameBuffer;
 import qz.common.TrayManager;
+import qz.printer.PrintJobInfo;
+import qz.printer.PrintJobManager;
 
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Vector;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -67,15 +72,24 @@ public class PrintSocket {
         UNSIGNED = Certificate.loadCertificate(map);
     }
 
+    // Maximum number of messages waiting to be processed for a single connection
+    private static final int MAX_PENDING_MESSAGES = 256;
+
     // Each connection to the websocket has its own instance of QZ to avoid conflicting print buffers
-    private static HashMap<Integer,PrintFunction> connections = new HashMap<Integer,PrintFunction>();
-    private static HashMap<Integer,Certificate> certificates = new HashMap<Integer,Certificate>();
-    private static AtomicBoolean isAsking = new AtomicBoolean(false);
+    private static ConcurrentHashMap<Integer,PrintFunction> connections = new ConcurrentHashMap<Integer,PrintFunction>();
+    private static ConcurrentHashMap<Integer,Certificate> certificates = new ConcurrentHashMap<Integer,Certificate>();
+    // Last error reported to each connection, so it is only sent once
+    private static ConcurrentHashMap<Integer,Throwable> lastErrors = new ConcurrentHashMap<Integer,Throwable>();
+    // Each connection processes its messages in order on its own thread, so a long print job doesn't stall other connections
+    private static ConcurrentHashMap<Integer,ThreadPoolExecutor> executors = new ConcurrentHashMap<Integer,ThreadPoolExecutor>();
+    // Dialog blocks UI, so only one connection may ask at a time
+    private static final Object dialogLock = new Object();
 
-    private final List<String> restrictedMethodNames = Arrays.asList("run", "stop", "start", "call", "init", "destroy", "paint");
+    private final List<String> restrictedMethodNames = Arrays.asList("run", "stop", "start", "call", "init", "destroy", "paint", "getPrintJobManager");
 
     // List of methods that will cause the print dialog to pop-up
     private final List<String> printingMethods = Arrays.asList("print", "printHTML", "printPS", "printToFile", "printToHost");
+    private final List<String> asyncPrintingMethods = Arrays.asList("printAsync", "printHTMLAsync", "printPSAsync");
     // List of methods that will cause the gateway dialog to pop-up
     private final List<String> privilegedMethods = Arrays.asList("findNetworkInfo", "closePort", "findPrinter", "findPrinters",
             "findPorts", "openPort", "send", "setSerialProperties", "setSerialBegin", "setSerialEnd", "getSerialIO", "setHostname", "setPort");
@@ -84,9 +98,7 @@ public class PrintSocket {
 
     private static JSONArray methods = null;
 
-    private static Throwable lastError = null;
 
-    private static boolean serialIOEnabled = false;
 
     @OnWebSocketConnect
     public void onConnect(Session session) {
@@ -105,6 +117,11 @@ public class PrintSocket {
         if (certificates.get(port) != null) {
             certificates.remove(port);
         }
+        lastErrors.remove(port);
+        ThreadPoolExecutor executor = executors.remove(port);
+        if (executor != null) {
+            executor.shutdownNow();
+        }
 
         log.info("WebSocket close: " + statusCode + " - " + reason);
         trayManager.displayInfoMessage("Client disconnected");
@@ -129,6 +146,62 @@ public class PrintSocket {
             sendResponse(session, Constants.PROBE_RESPONSE);
             log.info("Second instance of " + Constants.ABOUT_TITLE + " probably detected, now asking it to close...");
         } else if (!"ping".equals(json)) {
+            try {
+                getExecutor(session).execute(new MessageTask(session, json));
+            }
+            catch(RejectedExecutionException e) {
+                log.warning("Too many pending requests from " + session.getRemoteAddress() + ", message dropped");
+                sendError(session, "Too many pending requests");
+            }
+        }
+    }
+
+    /**
+     * Returns the single thread executor used to process messages from this
+     * connection.  Messages are handled in the order received, up to
+     * <code>MAX_PENDING_MESSAGES</code> may wait while another one is running.
+     */
+    private ThreadPoolExecutor getExecutor(final Session session) {
+        Integer port = session.getRemoteAddress().getPort();
+        ThreadPoolExecutor executor = executors.get(port);
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING_MESSAGES), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PrintSocket-" + session.getRemoteAddress());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+            ThreadPoolExecutor existing = executors.putIfAbsent(port, executor);
+            if (existing != null) {
+                executor = existing;
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Returns the number of messages from this connection still waiting to be processed
+     */
+    private int getPending(Session session) {
+        ThreadPoolExecutor executor = executors.get(session.getRemoteAddress().getPort());
+        return executor == null? 0:executor.getQueue().size();
+    }
+
+    private class MessageTask implements Runnable {
+
+        private Session session;
+        private String json;
+
+        public MessageTask(Session session, String json) {
+            this.session = session;
+            this.json = json;
+        }
+
+        @Override
+        public void run() {
             try {
                 log.info("Request: " + json);
 
@@ -159,7 +232,13 @@ public class PrintSocket {
 
     private void processMessage(Session session, JSONObject message, Certificate certificate) throws JSONException {
         Integer port = session.getRemoteAddress().getPort();
-        if (connections.get(port) == null) { connections.put(port, new PrintFunction()); connections.get(port).init(); connections.get(port).start(); }
+        if (connections.get(port) == null) {
+            PrintFunction created = new PrintFunction();
+            created.init();
+            created.start();
+            created.getPrintJobManager().addListener(new JobStatusListener(session));
+            connections.put(port, created);
+        }
         PrintFunction qz = connections.get(port);
 
         log.info("Server message: " + message);
@@ -179,237 +258,284 @@ public class PrintSocket {
             catch(Exception ignore) {}
 
             //Dialog blocks UI, so each request should wait until no longer blocked
-            while(isAsking.get()) {
-                try { Thread.sleep(1000); }catch(Exception ignore) {}
-            }
-
-            isAsking.set(true);
-
-            if (trayManager.showGatewayDialog(certificate)) {
-                if (methods == null) {
-                    methods = new JSONArray();
-
-                    try {
-                        Class c = PrintFunction.class;
-                        Method[] m = c.getDeclaredMethods();
-                        for(Method method : m) {
-                            if (method.getModifiers() == Modifier.PUBLIC) {
-                                String name = method.getName();
-
-                                // Add only if not in restricted method names list
-                                if (!restrictedMethodNames.contains(name)) {
-                                    JSONObject jMethod = new JSONObject();
-                                    jMethod.put("name", name);
-                                    jMethod.put("returns", method.getReturnType());
-                                    jMethod.put("parameters", method.getParameterTypes().length);
-
-                                    methods.put(jMethod);
+            synchronized(dialogLock) {
+                if (trayManager.showGatewayDialog(certificate)) {
+                    if (methods == null) {
+                        methods = new JSONArray();
+
+                        try {
+                            Class c = PrintFunction.class;
+                            Method[] m = c.getDeclaredMethods();
+                            for(Method method : m) {
+                                if (method.getModifiers() == Modifier.PUBLIC) {
+                                    String name = method.getName();
+
+                                    // Add only if not in restricted method names list
+                                    if (!restrictedMethodNames.contains(name)) {
+                                        JSONObject jMethod = new JSONObject();
+                                        jMethod.put("name", name);
+                                        jMethod.put("returns", method.getReturnType());
+                                        jMethod.put("parameters", method.getParameterTypes().length);
+
+                                        methods.put(jMethod);
+                                    }
                                 }
                             }
                         }
+                        catch(Exception ex) {
+                            ex.printStackTrace();
+                            message.put("error", ex.getMessage());
+                        }
                     }
-                    catch(Exception ex) {
-                        ex.printStackTrace();
-                        message.put("error", ex.getMessage());
-                    }
+
+                    message.put("result", methods);
+                    sendResponse(session, message);
+                } else {
+                    //Send blocked callback to web page
+                    message.put("callback", "requestBlocked");
+                    message.put("init", "false");
+                    sendResponse(session, message);
                 }
+            }
+        } else if ("batch".equals(message.getString("method"))) {
+            processBatch(session, qz, message, certificate);
+        } else {        // Figure out which method is being called and call it returning any values
+            String name = message.optString("method");
 
-                message.put("result", methods);
-                sendResponse(session, message);
+            if (isAllowed(name, qz, certificate)) {
+                JSONArray parts = message.optJSONArray("params");
+                if (parts == null) { parts = new JSONArray(); }
+
+                try {
+                    message.put("result", callMethod(session, qz, name, parts));
+                }
+                catch(NoSuchMethodException e) {
+                    message.put("error", "No methods found");
+                }
+                catch(RuntimeException ex) {
+                    ex.printStackTrace();
+                    message.put("error", ex.getMessage());
+                }
             } else {
+                // Didn't print request, clear the buffer for the next request
+                qz.clear();
                 //Send blocked callback to web page
                 message.put("callback", "requestBlocked");
                 message.put("init", "false");
-                sendResponse(session, message);
             }
 
-            isAsking.set(false);
+            sendResponse(session, message);
+        }
+    }
 
-            return;
-        } else {        // Figure out which method is being called and call it returning any values
-            String name = message.optString("method");
-            boolean blocked = false;
+    /**
+     * Executes an ordered list of calls sent in a single frame, such as
+     * <code>findPrinter</code>, several <code>append</code> and <code>print</code>.
+     * The frame's signature was verified once in <code>onMessage</code>, so every
+     * call shares its certificate.  A single response is sent back whose result
+     * holds one entry per call containing its <code>result</code> or <code>error</code>.
+     * Execution stops at the first call refused by the gateway dialog.
+     */
+    private void processBatch(Session session, PrintFunction qz, JSONObject message, Certificate certificate) throws JSONException {
+        JSONArray calls = message.optJSONArray("calls");
+        if (calls == null) { calls = new JSONArray(); }
+        JSONArray results = new JSONArray();
+
+        for(int i = 0; i < calls.length(); i++) {
+            JSONObject call = calls.getJSONObject(i);
+            String name = call.optString("method");
+
+            JSONObject entry = new JSONObject();
+            entry.put("method", name);
+
+            if (!isAllowed(name, qz, certificate)) {
+                // Didn't print request, clear the buffer for the next request
+                qz.clear();
+                entry.put("blocked", true);
+                results.put(entry);
+                message.put("blocked", true);
+                break;
+            }
 
-            if (printingMethods.contains(name) && !trayManager.showGatewayDialog(certificate, qz.getPrinter())) {
-                blocked = true; //required successful print dialog, but failed
+            JSONArray parts = call.optJSONArray("params");
+            if (parts == null) { parts = new JSONArray(); }
+
+            Throwable previous = qz.getException();
+            try {
+                entry.put("result", callMethod(session, qz, name, parts));
+                if (qz.getException() != null && qz.getException() != previous) {
+                    entry.put("error", getErrorMessage(qz.getException()));
+                }
             }
-            if (privilegedMethods.contains(name) && !trayManager.showGatewayDialog(certificate)) {
-                blocked = true; //required successful gateway dialog, but failed
+            catch(NoSuchMethodException e) {
+                entry.put("error", "No methods found");
+            }
+            catch(RuntimeException ex) {
+                ex.printStackTrace();
+                entry.put("error", ex.getMessage());
             }
 
-            if (!blocked) {
-                JSONArray parts = message.optJSONArray("params");
-                if (parts == null) { parts = new JSONArray(); }
-                Vector<Method> possibleMethods = new Vector<Method>();
-
-                try {
-                    Method[] methods = PrintFunction.class.getMethods();
-                    for(Method m : methods) {
-                        if (m.getName().equals(name) && parts.length() == m.getParameterTypes().length) {
-                            possibleMethods.add(m);
-                        }
-                    }
+            results.put(entry);
+        }
 
-                    Object result = null;     // default for void
+        message.put("result", results);
+        sendResponse(session, message);
+    }
 
-                    if (possibleMethods.size() == 0) {
-                        message.put("error", "No methods found");
-                        sendResponse(session, message);
-                        return;
-                    } else {
-                        for(Method method : possibleMethods) { // We found methods that may work. Now call them
-                            try {
-                                // Create array of objects based on number of parameters and their types
-                                Object[] params = new Object[parts.length()];
-                                // We must get the parameter object types correct based on what the method wants
-                                for(int i = 0; i < parts.length(); i++) {
-                                    params[i] = convertType(parts.getString(i), method.getParameterTypes()[i]);
-                                }
+    /**
+     * Shows the print or gateway dialog if the method requires one
+     *
+     * @return false if the user refused the request
+     */
+    private boolean isAllowed(String name, PrintFunction qz, Certificate certificate) {
+        boolean printing = printingMethods.contains(name) || asyncPrintingMethods.contains(name);
+        if (!printing && !privilegedMethods.contains(name)) {
+            return true; // no dialog, don't wait for other connections
+        }
 
-                                // Using jOOR to call method since primitives are involved
-                                // Invoke the method with all the parameters
-                                log.info("Calling: " + name + Arrays.toString(params));
-                                result = Reflect.on(qz).call(name, params).get();
+        synchronized(dialogLock) {
+            if (printing && !trayManager.showGatewayDialog(certificate, qz.getPrinter())) {
+                return false; //required successful print dialog, but failed
+            }
+            if (privilegedMethods.contains(name) && !trayManager.showGatewayDialog(certificate)) {
+                return false; //required successful gateway dialog, but failed
+            }
+        }
 
+        return true;
+    }
 
-                                if (result instanceof PrintFunction) {
-                                    result = "void";    // set since the return value is void
-                                }
+    /**
+     * Calls the <code>PrintFunction</code> method matching <code>name</code> and
+     * the number of <code>parts</code>, trying each overload until one succeeds.
+     *
+     * @return the value to send back to the browser for this call
+     * @throws NoSuchMethodException if no method matches the name and parameter count
+     * @throws IllegalArgumentException if every matching method failed, i.e. the parameters could not be converted
+     */
+    private Object callMethod(Session session, PrintFunction qz, String name, JSONArray parts) throws JSONException, NoSuchMethodException {
+        List<MethodDispatcher.Invoker> possibleMethods = MethodDispatcher.getInvokers(name, parts.length());
+        if (possibleMethods.size() == 0) {
+            throw new NoSuchMethodException(name);
+        }
 
-                                if ("openPort".equals(name)) {
-                                    result = (qz.getSerialIO() == null? null:qz.getSerialIO().getPortName());
-
-                                    // Watch serial port for any received data so we can send it to the browser
-                                    if (qz.getSerialIO() != null && qz.getSerialIO().isOpen()) {
-                                        qz.getSerialIO().clearOutput();
-
-                                        if (!serialIOEnabled) {
-                                            serialIOEnabled = true;
-                                            new Thread() {
-                                                public void run() {
-                                                    while (qz.getSerialIO().getPortName() != null) {
-                                                        if (qz.getSerialIO().getOutput() != null) {
-                                                            try {
-                                                                JSONObject portMsg = new JSONObject();
-                                                                portMsg.put("init", false);
-                                                                portMsg.put("callback", "qzSerialReturned");
-                                                                JSONArray res = new JSONArray();
-                                                                res.put(qz.getSerialIO().getPortName());
-                                                                res.put(new String(qz.getSerialIO().getOutput(), qz.getCharset()));
-                                                                portMsg.put("result", res);
-
-                                                                sendResponse(session, portMsg);
-                                                                qz.getSerialIO().clearOutput();
-                                                            } catch (JSONException e) {
-                                                                log.warning("Issue sending data received from serial port - " + e.getMessage());
-                                                            }
-                                                        }
-                                                        try {
-                                                            Thread.sleep(20);
-                                                        } catch (Exception ignore) {}
-                                                    }
-                                                    serialIOEnabled = false;
-                                                }
-
-                                                private Session session;
-                                                private PrintFunction qz;
-
-                                                public Thread setup(Session session, PrintFunction qz) {
-                                                    this.session = session;
-                                                    this.qz = qz;
-                                                    return this;
-                                                }
-                                            }.setup(session, qz).start();
-                                        }
-                                    }
-                                }
-                                if ("closePort".equals(name)) {
-                                    result = params[0];
-                                }
-                                if ("send".equals(name)) {
-                                    String data = new String(qz.getSerialIO().getOutput() == null? "".getBytes():qz.getSerialIO().getOutput(), qz.getCharset());
-                                    qz.getSerialIO().clearOutput();
+        Object result = null;     // default for void
+        Exception failure = null;
 
-                                    result = (qz.getSerialIO() == null? null:"[\"" + qz.getSerialIO().getPortName() + "\",\"" + data + "\"]");
-                                }
+        for(MethodDispatcher.Invoker method : possibleMethods) { // We found methods that may work. Now call them
+            try {
+                // Parameter converters were resolved when the dispatch table was built
+                Object[] params = method.convert(parts);
 
-                                // Send new return value for getPrinter when selected printer changes
-                                if ("findPrinter".equals(name)) {
-                                    log.info("Selected New Printer");
-                                    sendNewMethod(session, "getPrinter", qz.getPrinter());
-                                }
+                // Invoke the method with all the parameters
+                log.info("Calling: " + name + Arrays.toString(params));
+                result = method.invoke(qz, params);
 
-                                if ("findPrinter".equals(name) || "findPrinters".equals(name)) {
-                                    sendNewMethod(session, "getPrinters", qz.getPrinters()); //escape all backslashes
-                                }
 
-                                // Pass method results to simulate APPLET's synchronous calls
-                                if ("findPorts".equals(name)) {
-                                    sendNewMethod(session, "getPorts", qz.getPorts());
-                                }
+                if (result instanceof PrintFunction) {
+                    result = "void";    // set since the return value is void
+                }
 
-                                if ("findNetworkInfo".equals(name)) {
-                                    sendNewMethod(session, "getIP", qz.getIP());
-                                    sendNewMethod(session, "getMac", qz.getMac());
-                                }
+                if ("openPort".equals(name)) {
+                    result = (qz.getSerialIO() == null? null:qz.getSerialIO().getPortName());
 
-                                if ("setLogPostScriptFeatures".equals(name)) {
-                                    sendNewMethod(session, "getLogPostScriptFeatures", qz.getLogPostScriptFeatures());
-                                }
+                    // Send each response from the serial port to the browser as it arrives
+                    if (qz.getSerialIO() != null && qz.getSerialIO().isOpen()) {
+                        qz.getSerialIO().clearOutput();
+                        qz.getSerialIO().setResponseListener(new SerialResponseListener(session, qz));
+                    }
+                }
+                if ("closePort".equals(name)) {
+                    if (qz.getSerialIO() != null) {
+                        qz.getSerialIO().setResponseListener(null);
+                    }
+                    result = params[0];
+                }
+                // Report the outcome of the print job, i.e. "COMPLETED" or "FAILED"
+                if (printingMethods.contains(name)) {
+                    result = qz.getJobStatus();
+                }
+                if ("send".equals(name)) {
+                    String data = new String(qz.getSerialIO().getOutput() == null? "".getBytes():qz.getSerialIO().getOutput(), qz.getCharset());
+                    qz.getSerialIO().clearOutput();
 
-                                if ("useAlternatePrinting".equals(name)) {
-                                    sendNewMethod(session, "isAlternatePrinting", qz.isAlternatePrinting());
-                                }
+                    result = (qz.getSerialIO() == null? null:"[\"" + qz.getSerialIO().getPortName() + "\",\"" + data + "\"]");
+                }
 
-                                if (qz.getException() != lastError) {
-                                    String eMsg = null;
-                                    if (qz.getException() != null) {
-                                        eMsg = qz.getException().getLocalizedMessage();
-                                        if (eMsg == null) {
-                                            eMsg = qz.getException().getClass().getSimpleName();
-                                        }
-                                    }
+                // Send new return value for getPrinter when selected printer changes
+                if ("findPrinter".equals(name)) {
+                    log.info("Selected New Printer");
+                    sendNewMethod(session, "getPrinter", qz.getPrinter());
+                }
 
-                                    sendNewMethod(session, "getException", eMsg);
-                                    lastError = qz.getException();
+                if ("findPrinter".equals(name) || "findPrinters".equals(name)) {
+                    sendNewMethod(session, "getPrinters", qz.getPrinters()); //escape all backslashes
+                }
 
-                                    if (eMsg != null) {
-                                        trayManager.displayErrorMessage(eMsg);
-                                    }
-                                }
+                // Pass method results to simulate APPLET's synchronous calls
+                if ("findPorts".equals(name)) {
+                    sendNewMethod(session, "getPorts", qz.getPorts());
+                }
 
-                                break; //method worked, don't try others
-                            }
-                            catch(Exception e) {
-                                log.warning("Method " + method.getName() + " failed: '" + e.getMessage() + "', will try overloaded method if one exists");
-                                e.printStackTrace();
-                            }
-                        }
-                    }
+                if ("findNetworkInfo".equals(name)) {
+                    sendNewMethod(session, "getIP", qz.getIP());
+                    sendNewMethod(session, "getMac", qz.getMac());
+                }
 
-                    message.put("result", result);
-                    sendResponse(session, message);
-                    return;
+                if ("setLogPostScriptFeatures".equals(name)) {
+                    sendNewMethod(session, "getLogPostScriptFeatures", qz.getLogPostScriptFeatures());
+                }
 
+                if ("useAlternatePrinting".equals(name)) {
+                    sendNewMethod(session, "isAlternatePrinting", qz.isAlternatePrinting());
                 }
-                catch(ReflectException ex) {
-                    ex.printStackTrace();
-                    message.put("error", ex.getMessage());
+
+                Integer port = session.getRemoteAddress().getPort();
+                Throwable error = qz.getException();
+                if (error != lastErrors.get(port)) {
+                    String eMsg = getErrorMessage(error);
+
+                    sendNewMethod(session, "getException", eMsg);
+                    if (error == null) {
+                        lastErrors.remove(port);
+                    } else {
+                        lastErrors.put(port, error);
+                    }
+
+                    if (eMsg != null) {
+                        trayManager.displayErrorMessage(eMsg);
+                    }
                 }
-            } else {
-                // Didn't print request, clear the buffer for the next request
-                qz.clear();
-                //Send blocked callback to web page
-                message.put("callback", "requestBlocked");
-                message.put("init", "false");
-                sendResponse(session, message);
+
+                failure = null;
+                break; //method worked, don't try others
+            }
+            catch(Exception e) {
+                log.warning("Method " + method.getName() + " failed: '" + e.getMessage() + "', will try overloaded method if one exists");
+                e.printStackTrace();
+                failure = e;
             }
         }
 
-        if (message.opt("error") != null) {
-            message.put("error", "Unknown Message");
+        if (failure != null) {
+            // No overload accepted the parameters, don't let it pass for a null result
+            String msg = failure.getMessage();
+            throw new IllegalArgumentException("Cannot call " + name + ": " + (msg == null? failure.getClass().getSimpleName():msg), failure);
         }
-        sendResponse(session, message);
+
+        return result;
+    }
+
+    private String getErrorMessage(Throwable t) {
+        if (t == null) {
+            return null;
+        }
+
+        String eMsg = t.getLocalizedMessage();
+        if (eMsg == null) {
+            eMsg = t.getClass().getSimpleName();
+        }
+        return eMsg;
     }
 
     private void sendNewMethod(Session session, String methodName, Object result) {
@@ -421,11 +547,84 @@ public class PrintSocket {
         sendResponse(session, "{\"method\":\"" + methodName + "\",\"params\":[],\"callback\":\"setupMethods\",\"init\":true,\"result\":\"" + result + "\"}");
     }
 
+    /**
+     * Pushes every status change of a queued print job to the page as a
+     * <code>qzJobStatus(id, status, error, queueTime, spoolTime)</code> callback
+     */
+    private class JobStatusListener implements PrintJobManager.Listener {
+
+        private final Session session;
+
+        public JobStatusListener(Session session) {
+            this.session = session;
+        }
+
+        //@Override //JDK 1.6
+        public void jobChanged(PrintJobInfo job) {
+            try {
+                JSONObject statusMsg = new JSONObject();
+                statusMsg.put("init", false);
+                statusMsg.put("callback", "qzJobStatus");
+                JSONArray res = new JSONArray();
+                res.put(job.getId());
+                res.put(job.getStatus().name());
+                res.put(job.getError());
+                res.put(job.getQueueTime());
+                res.put(job.getSpoolTime());
+                statusMsg.put("result", res);
+
+                sendResponse(session, statusMsg);
+            }
+            catch(JSONException e) {
+                log.warning("Issue sending status of print job " + job.getId() + " - " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Pushes every response read from the serial port to the page as a
+     * <code>qzSerialReturned(portName, data)</code> callback
+     */
+    private class SerialResponseListener implements SerialFrameBuffer.FrameListener {
+
+        private final Session session;
+        private final PrintFunction qz;
+
+        public SerialResponseListener(Session session, PrintFunction qz) {
+            this.session = session;
+            this.qz = qz;
+        }
+
+        //@Override //JDK 1.6
+        public void frameReceived(byte[] frame) {
+            try {
+                JSONObject portMsg = new JSONObject();
+                portMsg.put("init", false);
+                portMsg.put("callback", "qzSerialReturned");
+                JSONArray res = new JSONArray();
+                res.put(qz.getSerialIO().getPortName());
+                res.put(new String(frame, qz.getCharset()));
+                portMsg.put("result", res);
+
+                sendResponse(session, portMsg);
+            }
+            catch(JSONException e) {
+                log.warning("Issue sending data received from serial port - " + e.getMessage());
+            }
+        }
+    }
+
     private void sendError(Session session, String error) {
         sendResponse(session, "{\"error\": \"" + error + "\"}");
     }
 
     private void sendResponse(Session session, JSONObject message) {
+        try {
+            // Let the page know how many of its requests are still waiting behind this one
+            message.put("pending", getPending(session));
+        }
+        catch(JSONException ignore) {}
+
         sendResponse(session, message.toString());
     }
 
@@ -439,22 +638,4 @@ public class PrintSocket {
         }
     }
 
-    private Object convertType(String data, Object type) {
-        log.info("CONVERTING " + data + " --> " + type);
-
-        if (type instanceof String) { return data; }
-        if (type instanceof Integer) { return Integer.decode(data); }
-        if (type instanceof Float) { return Float.parseFloat(data); }
-        if (type instanceof Double) { return Double.parseDouble(data); }
-        if (type instanceof Boolean) { return Boolean.parseBoolean(data); }
-
-        String name = String.valueOf(type);
-        if ("int".equals(name)) { return Integer.decode(data); }
-        if ("float".equals(name)) { return Float.parseFloat(data); }
-        if ("double".equals(name)) { return Double.parseDouble(data); }
-        if ("boolean".equals(name)) { return Boolean.parseBoolean(data); }
-
-        return data;
-    }
-
 }